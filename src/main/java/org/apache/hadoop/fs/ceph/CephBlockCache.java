@@ -0,0 +1,319 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * In-memory cache of file blocks shared by the streams of a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of fixed-size file blocks.
+ *
+ * Blocks are keyed by path, file version and block index, where the
+ * version is the (mtime, size) pair reported by fstat when the file was
+ * opened. Opening a file whose version differs from the one last seen for
+ * its path drops every cached block of the old version, and blocks read
+ * by streams still open on an old version are not admitted. Block data is
+ * kept on the Java heap, or in direct buffers when off-heap storage is
+ * configured so that a large cache does not inflate GC pause times.
+ *
+ * An optional {@link CephDiskCache} acts as a second tier: blocks read
+ * from Ceph are written to both, and a block missing from memory is
+ * looked up on local disk before going to the OSDs.
+ *
+ * Libcephfs does not expose inode numbers, so a file is identified by its
+ * path; a rename onto a cached path is caught by the version check.
+ */
+public class CephBlockCache {
+
+  static final class Key {
+    final String path;
+    final long mtime;
+    final long size;
+    final long block;
+
+    Key(String path, long mtime, long size, long block) {
+      this.path = path;
+      this.mtime = mtime;
+      this.size = size;
+      this.block = block;
+    }
+
+    boolean sameVersion(long mtime, long size) {
+      return this.mtime == mtime && this.size == size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return block == k.block && mtime == k.mtime && size == k.size &&
+        path.equals(k.path);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = path.hashCode();
+      h = 31 * h + (int) (mtime ^ (mtime >>> 32));
+      h = 31 * h + (int) (size ^ (size >>> 32));
+      h = 31 * h + (int) (block ^ (block >>> 32));
+      return h;
+    }
+  }
+
+  /**
+   * A file as seen by one open stream: its path and the version it was
+   * opened at.
+   */
+  class CachedFile {
+    private final String path;
+    private final long mtime;
+    private final long size;
+
+    private CachedFile(String path, long mtime, long size) {
+      this.path = path;
+      this.mtime = mtime;
+      this.size = size;
+    }
+
+    int getBlockSize() {
+      return blockSize;
+    }
+
+    /**
+     * Copy a cached block into dst.
+     * @return the length of the block, or -1 if it is not cached.
+     */
+    int get(long block, byte[] dst) {
+      return CephBlockCache.this.get(
+          new Key(path, mtime, size, block), dst);
+    }
+
+    /**
+     * Offer a block read from Ceph to the cache.
+     */
+    void put(long block, byte[] src, int length) {
+      CephBlockCache.this.put(
+          new Key(path, mtime, size, block), src, length);
+    }
+  }
+
+  private final long capacity;
+  private final int blockSize;
+  private final boolean offHeap;
+  private final CephDiskCache disk;
+
+  /* access-ordered, so iteration starts at the least recently used block */
+  private final LinkedHashMap<Key, ByteBuffer> blocks =
+    new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+  private final Map<String, Key> versions = new HashMap<String, Key>();
+
+  private long cachedBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+
+  CephBlockCache(long capacity, int blockSize, boolean offHeap) {
+    this(capacity, blockSize, offHeap, null);
+  }
+
+  /**
+   * @param disk the local disk tier, or null for a memory-only cache.
+   */
+  CephBlockCache(long capacity, int blockSize, boolean offHeap,
+      CephDiskCache disk) {
+    this.capacity = capacity;
+    this.blockSize = blockSize;
+    this.offHeap = offHeap;
+    this.disk = disk;
+  }
+
+  /**
+   * Register an open of path at the given version, dropping the blocks of
+   * any other version of it.
+   */
+  CachedFile open(String path, long mtime, long size) {
+    synchronized (this) {
+      Key current = versions.get(path);
+      if (current == null || !current.sameVersion(mtime, size)) {
+        if (current != null)
+          invalidateMemory(path);
+        versions.put(path, new Key(path, mtime, size, -1));
+      }
+    }
+    if (disk != null)
+      disk.open(path, mtime, size);
+    return new CachedFile(path, mtime, size);
+  }
+
+  /**
+   * Drop all cached blocks of path, e.g. because it was overwritten or
+   * deleted through this file system.
+   */
+  void invalidate(String path) {
+    invalidateMemory(path);
+    if (disk != null)
+      disk.invalidate(path);
+  }
+
+  private synchronized void invalidateMemory(String path) {
+    Iterator<Map.Entry<Key, ByteBuffer>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, ByteBuffer> e = it.next();
+      if (e.getKey().path.equals(path)) {
+        cachedBytes -= e.getValue().capacity();
+        invalidations++;
+        it.remove();
+      }
+    }
+    versions.remove(path);
+  }
+
+  private int get(Key key, byte[] dst) {
+    ByteBuffer data;
+    synchronized (this) {
+      data = blocks.get(key);
+      if (data == null)
+        misses++;
+      else
+        hits++;
+    }
+    if (data == null) {
+      if (disk == null)
+        return -1;
+      int length = disk.get(key, dst);
+      if (length > 0)
+        putMemory(key, dst, length);
+      return length;
+    }
+    data = data.duplicate();
+    /* cached buffers are never modified, so copy outside the lock */
+    int length = data.remaining();
+    data.get(dst, 0, length);
+    return length;
+  }
+
+  private void put(Key key, byte[] src, int length) {
+    putMemory(key, src, length);
+    if (disk != null)
+      disk.put(key, src, length);
+  }
+
+  private void putMemory(Key key, byte[] src, int length) {
+    if (length <= 0 || length > capacity)
+      return;
+    ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(length)
+      : ByteBuffer.allocate(length);
+    data.put(src, 0, length);
+    data.flip();
+
+    synchronized (this) {
+      Key current = versions.get(key.path);
+      if (current == null || !current.sameVersion(key.mtime, key.size))
+        return;
+      ByteBuffer old = blocks.put(key, data);
+      if (old != null)
+        cachedBytes -= old.capacity();
+      cachedBytes += length;
+
+      Iterator<ByteBuffer> it = blocks.values().iterator();
+      while (cachedBytes > capacity && it.hasNext()) {
+        cachedBytes -= it.next().capacity();
+        evictions++;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop everything held in memory and close the disk tier, which keeps
+   * its blocks for the next process.
+   */
+  void close() {
+    synchronized (this) {
+      blocks.clear();
+      versions.clear();
+      cachedBytes = 0;
+    }
+    if (disk != null)
+      disk.close();
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * Get the local disk tier, or null if there is none.
+   */
+  public CephDiskCache getDiskCache() {
+    return disk;
+  }
+
+  /** Number of block lookups served from memory. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Number of block lookups not found in memory. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Number of blocks dropped to stay within the capacity. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Number of blocks dropped because their file changed. */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /** Bytes of block data currently cached. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /** Number of blocks currently cached. */
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephBlockCache[capacity=" + capacity + " blockSize=" + blockSize
+      + " offHeap=" + offHeap + " cached=" + cachedBytes
+      + " blocks=" + blocks.size() + " hits=" + hits + " misses=" + misses
+      + " evictions=" + evictions + " invalidations=" + invalidations + "]";
+  }
+}
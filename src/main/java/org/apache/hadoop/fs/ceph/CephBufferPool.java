@@ -0,0 +1,143 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Pool of I/O buffers shared by the streams of a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of byte[] buffers in power-of-two size classes.
+ *
+ * Streams acquire their I/O buffers here and release them on close, so
+ * opening many short-lived streams reuses a few large arrays instead of
+ * allocating (and, with G1, humongously allocating) a new one each time.
+ * Released buffers are kept while the pooled total stays within the
+ * configured capacity; anything beyond that is left to the garbage
+ * collector. A capacity of zero disables pooling.
+ */
+public class CephBufferPool {
+  static final int MIN_CLASS_SIZE = 4096;
+  static final int MAX_CLASS_SIZE = 1 << 30;
+
+  private final long capacity;
+  /* free buffers by size class, indexed by log2 of the class size */
+  private final List<ArrayDeque<byte[]>> free;
+
+  private long pooledBytes = 0;
+  private long outstandingBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  CephBufferPool(long capacity) {
+    this.capacity = capacity;
+    int classes = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) + 1;
+    this.free = new ArrayList<ArrayDeque<byte[]>>(classes);
+    for (int i = 0; i < classes; i++)
+      free.add(new ArrayDeque<byte[]>());
+  }
+
+  /**
+   * Round a requested size up to its size class.
+   */
+  static int classSize(int size) {
+    if (size <= MIN_CLASS_SIZE)
+      return MIN_CLASS_SIZE;
+    if (size > MAX_CLASS_SIZE / 2)
+      return MAX_CLASS_SIZE;
+    return Integer.highestOneBit(size - 1) << 1;
+  }
+
+  /**
+   * Get a buffer of at least size bytes. The contents are undefined.
+   */
+  byte[] acquire(int size) {
+    int classSize = classSize(size);
+    int idx = Integer.numberOfTrailingZeros(classSize);
+    synchronized (this) {
+      outstandingBytes += classSize;
+      ArrayDeque<byte[]> queue = free.get(idx);
+      if (!queue.isEmpty()) {
+        hits++;
+        pooledBytes -= classSize;
+        return queue.poll();
+      }
+      misses++;
+    }
+    return new byte[classSize];
+  }
+
+  /**
+   * Give a buffer obtained from {@link #acquire(int)} back to the pool.
+   */
+  void release(byte[] buf) {
+    if (buf == null || buf.length < MIN_CLASS_SIZE ||
+        Integer.bitCount(buf.length) != 1)
+      return;
+    int idx = Integer.numberOfTrailingZeros(buf.length);
+    synchronized (this) {
+      outstandingBytes -= buf.length;
+      if (pooledBytes + buf.length > capacity)
+        return;
+      free.get(idx).add(buf);
+      pooledBytes += buf.length;
+    }
+  }
+
+  /**
+   * Drop all pooled buffers.
+   */
+  synchronized void clear() {
+    for (ArrayDeque<byte[]> queue : free)
+      queue.clear();
+    pooledBytes = 0;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /** Number of acquires satisfied from the pool. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Number of acquires that had to allocate. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Bytes currently handed out to streams. */
+  public synchronized long getOutstandingBytes() {
+    return outstandingBytes;
+  }
+
+  /** Bytes currently held idle in the pool. */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephBufferPool[capacity=" + capacity + " pooled=" + pooledBytes
+      + " outstanding=" + outstandingBytes + " hits=" + hits
+      + " misses=" + misses + "]";
+  }
+}
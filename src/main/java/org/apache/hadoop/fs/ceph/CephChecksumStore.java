@@ -0,0 +1,404 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * File checksums of a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import com.ceph.fs.CephMount;
+import com.ceph.fs.CephStat;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Keeps the {@link CephCompositeCrcFileChecksum} of files.
+ *
+ * Output streams compute the checksum as data passes through them and
+ * store it, together with the file's size and mtime, in the
+ * {@value #XATTR} extended attribute when they close. A stored checksum
+ * is only used while the file still has that size and mtime, so a file
+ * changed by anything that does not maintain the attribute is noticed.
+ *
+ * Files without a usable stored checksum are read with parallel
+ * positional reads of ceph.checksum.chunk.size bytes on the file
+ * system's I/O threads, and the CRCs of the chunks composed. The result
+ * is kept in an LRU cache of ceph.checksum.cache.entries files, again
+ * valid for as long as the size and mtime are unchanged.
+ */
+public class CephChecksumStore {
+  private static final Log LOG = LogFactory.getLog(CephChecksumStore.class);
+
+  static final String XATTR = "user.hadoop.checksum.composite-crc32c";
+  private static final byte XATTR_VERSION = 1;
+  private static final int READ_SIZE = 1024 * 1024;
+
+  /* a checksum and the version of the file it is for */
+  private static final class Entry {
+    final long size;
+    final long mtime;
+    final int crc;
+
+    Entry(long size, long mtime, int crc) {
+      this.size = size;
+      this.mtime = mtime;
+      this.crc = crc;
+    }
+
+    boolean matches(CephStat stat) {
+      return size == stat.size && mtime == stat.m_time;
+    }
+  }
+
+  /**
+   * The running checksum of an output stream.
+   */
+  final class Tracker {
+    private final Path path;
+    private final int prefixCrc;
+    private final long prefixLength;
+    private final PureJavaCrc32C crc = new PureJavaCrc32C();
+    private long length = 0;
+    private byte[] scratch = null;
+
+    private Tracker(Path path, int prefixCrc, long prefixLength) {
+      this.path = path;
+      this.prefixCrc = prefixCrc;
+      this.prefixLength = prefixLength;
+    }
+
+    void update(byte[] buf, int off, int len) {
+      crc.update(buf, off, len);
+      length += len;
+    }
+
+    /* the remaining bytes of buf, without moving its position */
+    void update(ByteBuffer buf) {
+      if (buf.hasArray()) {
+        update(buf.array(), buf.arrayOffset() + buf.position(),
+            buf.remaining());
+        return;
+      }
+      if (scratch == null)
+        scratch = new byte[8192];
+      ByteBuffer src = buf.duplicate();
+      while (src.hasRemaining()) {
+        int n = Math.min(scratch.length, src.remaining());
+        src.get(scratch, 0, n);
+        update(scratch, 0, n);
+      }
+    }
+
+    /**
+     * Store the checksum once everything written has reached libcephfs.
+     * Nothing is stored if the file is not exactly what passed through
+     * the stream. Failing to store only costs a later read of the file.
+     */
+    void store(int fd) {
+      int value = CephCompositeCrcFileChecksum.compose(prefixCrc,
+          (int) crc.getValue(), length);
+      try {
+        CephStat stat = new CephStat();
+        ceph.fstat(fd, stat);
+        if (stat.size != prefixLength + length) {
+          LOG.debug("Not storing checksum of " + path + ": wrote "
+              + (prefixLength + length) + " bytes, file has " + stat.size);
+          return;
+        }
+        ceph.lsetxattr(path, XATTR,
+            encode(new Entry(stat.size, stat.m_time, value)));
+        stored.incrementAndGet();
+      } catch (IOException e) {
+        LOG.debug("Failed to store checksum of " + path + ": " + e);
+      }
+    }
+  }
+
+  private final CephFsProto ceph;
+  private final ExecutorService executor;
+  private final int depth;
+  private final long chunkSize;
+  private final int maxEntries;
+
+  /* guarded by itself */
+  private final LinkedHashMap<String, Entry> cache =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+
+  private final AtomicLong stored = new AtomicLong();
+  private final AtomicLong storedHits = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong computed = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  /**
+   * @param executor Runs the reads of files being checksummed.
+   * @param depth Number of chunks read at once.
+   */
+  CephChecksumStore(CephFsProto ceph, ExecutorService executor, int depth,
+      long chunkSize, int maxEntries) {
+    this.ceph = ceph;
+    this.executor = executor;
+    this.depth = Math.max(1, depth);
+    this.chunkSize = Math.max(1, chunkSize);
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Start tracking the checksum of data written to fd, opened on path. An
+   * appending stream carries on from the file's stored or cached
+   * checksum; without one there is nothing to carry on from and null is
+   * returned.
+   */
+  Tracker track(Path path, int fd, boolean append) throws IOException {
+    if (!append)
+      return new Tracker(path, 0, 0);
+    CephStat stat = new CephStat();
+    ceph.fstat(fd, stat);
+    if (stat.size == 0)
+      return new Tracker(path, 0, 0);
+    Entry e = lookup(path, stat);
+    return e == null ? null : new Tracker(path, e.crc, e.size);
+  }
+
+  /**
+   * Get the checksum of a file, or null if path is a directory.
+   */
+  public CephCompositeCrcFileChecksum getFileChecksum(Path path)
+      throws IOException {
+    CephStat stat = new CephStat();
+    ceph.lstat(path, stat);
+    if (!stat.isFile())
+      return null;
+
+    Entry e = lookup(path, stat);
+    if (e == null) {
+      e = compute(path);
+      /* only keep it if the file did not change while we read it */
+      CephStat after = new CephStat();
+      ceph.lstat(path, after);
+      if (e.matches(after)) {
+        synchronized (cache) {
+          cache.put(path.toUri().getPath(), e);
+        }
+      }
+    }
+    return new CephCompositeCrcFileChecksum(e.crc);
+  }
+
+  /**
+   * Forget the cached checksum of a file changed through this file system.
+   */
+  void invalidate(Path path) {
+    synchronized (cache) {
+      cache.remove(path.toUri().getPath());
+    }
+  }
+
+  /*
+   * The stored or cached checksum of the file's current version, if any.
+   */
+  private Entry lookup(Path path, CephStat stat) throws IOException {
+    Entry e = decode(ceph.lgetxattr(path, XATTR));
+    if (e != null && e.matches(stat)) {
+      storedHits.incrementAndGet();
+      return e;
+    }
+    synchronized (cache) {
+      e = cache.get(path.toUri().getPath());
+    }
+    if (e != null && e.matches(stat)) {
+      cacheHits.incrementAndGet();
+      return e;
+    }
+    return null;
+  }
+
+  /*
+   * Checksum the file in chunks read in parallel, composing the chunk
+   * CRCs in order as they complete.
+   */
+  private Entry compute(Path path) throws IOException {
+    int fd = ceph.open(path, CephMount.O_RDONLY, 0);
+    try {
+      CephStat stat = new CephStat();
+      ceph.fstat(fd, stat);
+      long size = stat.size;
+      int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+
+      List<FutureTask<Integer>> tasks = new ArrayList<FutureTask<Integer>>();
+      int value = 0;
+      try {
+        for (int i = 0; i < chunks; i++) {
+          while (tasks.size() < chunks && tasks.size() - i < depth) {
+            long start = tasks.size() * chunkSize;
+            tasks.add(submitChunk(fd, start, Math.min(chunkSize, size - start)));
+          }
+          int chunkCrc = Uninterruptibles.getUninterruptibly(tasks.get(i));
+          value = CephCompositeCrcFileChecksum.compose(value, chunkCrc,
+              Math.min(chunkSize, size - i * chunkSize));
+        }
+      } catch (ExecutionException e) {
+        awaitChunks(tasks);
+        Throwable cause = e.getCause();
+        throw cause instanceof IOException ? (IOException) cause
+          : new IOException("Checksum of " + path + " failed", cause);
+      } catch (CancellationException e) {
+        /* dropped by the file system's executor on close */
+        awaitChunks(tasks);
+        throw new IOException("Checksum of " + path
+            + " cancelled: file system closed");
+      }
+      computed.incrementAndGet();
+      return new Entry(size, stat.m_time, value);
+    } finally {
+      ceph.close(fd);
+    }
+  }
+
+  /*
+   * Wait for every chunk read that was started: nothing may still be
+   * reading from the file handle when it is closed.
+   */
+  private static void awaitChunks(List<FutureTask<Integer>> tasks) {
+    for (FutureTask<Integer> task : tasks) {
+      try {
+        Uninterruptibles.getUninterruptibly(task);
+      } catch (ExecutionException ignored) {
+      } catch (CancellationException ignored) {
+      }
+    }
+  }
+
+  private FutureTask<Integer> submitChunk(final int fd, final long offset,
+      final long length) {
+    FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        return checksumRange(fd, offset, length);
+      }
+    });
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+    return task;
+  }
+
+  private int checksumRange(int fd, long offset, long length)
+      throws IOException {
+    PureJavaCrc32C crc = new PureJavaCrc32C();
+    byte[] buf = new byte[(int) Math.min(READ_SIZE, length)];
+    long done = 0;
+    while (done < length) {
+      int ret = ceph.read(fd, buf, 0, Math.min(buf.length, length - done),
+          offset + done);
+      if (ret <= 0) {
+        throw new IOException("Checksum read of fd " + fd + " at offset "
+            + (offset + done) + " failed: ret=" + ret);
+      }
+      crc.update(buf, 0, ret);
+      done += ret;
+    }
+    bytesRead.addAndGet(length);
+    return (int) crc.getValue();
+  }
+
+  private static byte[] encode(Entry e) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(XATTR_VERSION);
+      out.writeLong(e.size);
+      out.writeLong(e.mtime);
+      out.writeInt(e.crc);
+    } catch (IOException impossible) {
+      throw new AssertionError(impossible);
+    }
+    return bytes.toByteArray();
+  }
+
+  /* null for a missing or unrecognized value */
+  private static Entry decode(byte[] value) {
+    if (value == null || value.length != 21 || value[0] != XATTR_VERSION)
+      return null;
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(value, 1,
+          value.length - 1));
+    try {
+      return new Entry(in.readLong(), in.readLong(), in.readInt());
+    } catch (IOException impossible) {
+      throw new AssertionError(impossible);
+    }
+  }
+
+  /** Number of checksums stored by output streams. */
+  public long getStored() {
+    return stored.get();
+  }
+
+  /** Number of checksums served from the file's extended attribute. */
+  public long getStoredHits() {
+    return storedHits.get();
+  }
+
+  /** Number of checksums served from the cache of computed checksums. */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /** Number of files checksummed by reading them. */
+  public long getComputed() {
+    return computed.get();
+  }
+
+  /** Bytes read to checksum files. */
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  @Override
+  public String toString() {
+    return "CephChecksumStore[stored=" + stored + " storedHits=" + storedHits
+      + " cacheHits=" + cacheHits + " computed=" + computed
+      + " bytesRead=" + bytesRead + "]";
+  }
+}
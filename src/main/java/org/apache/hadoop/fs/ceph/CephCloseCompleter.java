@@ -0,0 +1,180 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Background completion of output stream closes.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finishes closing output streams in the background. A stream closed in
+ * async mode moves its data into libcephfs and hands its file handle
+ * over; the sync and close of the handle then run on the file system's
+ * I/O threads while the caller moves on.
+ *
+ * At most maxPending handles are outstanding: further closes wait for a
+ * completion. Failures are kept until {@link #await()} reports them,
+ * which it does after waiting for every outstanding completion.
+ */
+public class CephCloseCompleter {
+  private static final Log LOG = LogFactory.getLog(CephCloseCompleter.class);
+
+  private final CephFsProto ceph;
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final CephSyncCoordinator syncCoordinator;
+
+  /* guarded by this */
+  private int pending = 0;
+  private long completed = 0;
+  private long failed = 0;
+  private final List<IOException> failures = new ArrayList<IOException>();
+
+  /**
+   * @param syncCoordinator Batches the syncs with those of other files.
+   * May be null, in which case each completion does an fsync.
+   */
+  CephCloseCompleter(CephFsProto ceph, ExecutorService executor,
+      int maxPending, CephSyncCoordinator syncCoordinator) {
+    this.ceph = ceph;
+    this.executor = executor;
+    this.maxPending = Math.max(1, maxPending);
+    this.syncCoordinator = syncCoordinator;
+  }
+
+  /**
+   * Sync and close fd in the background, first waiting for room if
+   * maxPending closes are outstanding. Like close itself this does not
+   * give up when interrupted.
+   */
+  void submit(final int fd) {
+    boolean interrupted = false;
+    synchronized (this) {
+      while (pending >= maxPending) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      pending++;
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    Runnable completion = new Runnable() {
+      public void run() {
+        complete(fd);
+      }
+    };
+    try {
+      executor.execute(completion);
+    } catch (RejectedExecutionException e) {
+      /* the file system is closing; finish in the caller */
+      completion.run();
+    }
+  }
+
+  private void complete(int fd) {
+    IOException failure = null;
+    try {
+      if (syncCoordinator != null)
+        syncCoordinator.sync(fd);
+      else
+        ceph.fsync(fd);
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      try {
+        ceph.close(fd);
+      } catch (IOException e) {
+        if (failure == null)
+          failure = e;
+      }
+    }
+
+    synchronized (this) {
+      pending--;
+      completed++;
+      if (failure != null) {
+        LOG.debug("async close of fd " + fd + " failed", failure);
+        failed++;
+        failures.add(new IOException("async close of fd " + fd
+              + " failed: " + failure.getMessage(), failure));
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Wait for every outstanding close to complete.
+   * @throws IOException if any close that completed since the last call
+   * failed. The first failure is the cause.
+   */
+  public void await() throws IOException {
+    List<IOException> report;
+    boolean interrupted = false;
+    synchronized (this) {
+      while (pending > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      report = new ArrayList<IOException>(failures);
+      failures.clear();
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    if (report.size() == 1)
+      throw report.get(0);
+    if (report.size() > 1)
+      throw new IOException(report.size() + " async closes failed, first: "
+          + report.get(0).getMessage(), report.get(0));
+  }
+
+  /** Number of closes handed over and not yet completed. */
+  public synchronized int getPending() {
+    return pending;
+  }
+
+  /** Number of closes completed, successfully or not. */
+  public synchronized long getCompleted() {
+    return completed;
+  }
+
+  /** Number of closes that failed. */
+  public synchronized long getFailed() {
+    return failed;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephCloseCompleter[pending=" + pending + " completed="
+      + completed + " failed=" + failed + "]";
+  }
+}
@@ -0,0 +1,136 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Whole-file CRC checksum of a CephFileSystem file.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileChecksum;
+
+/**
+ * The CRC32C of a file's contents, in the form of HDFS's composite CRC
+ * file checksum (dfs.checksum.combine.mode=COMPOSITE_CRC with the CRC32C
+ * checksum type). Such checksums do not depend on block or chunk sizes,
+ * so copies between CephFS and HDFS can be compared.
+ *
+ * The CRC of a concatenation can be computed from the CRCs of its parts
+ * with {@link #compose}, which lets a file be checksummed in pieces.
+ */
+public class CephCompositeCrcFileChecksum extends FileChecksum {
+  public static final String ALGORITHM_NAME = "COMPOSITE-CRC32C";
+
+  /* reflected CRC32C polynomial */
+  private static final int CRC32C_POLYNOMIAL = 0x82f63b78;
+  /* the polynomial 1: the top bit is the x^0 term */
+  private static final int MULTIPLICATIVE_IDENTITY = 0x80000000;
+
+  private int crc;
+
+  /** For Writable deserialization. */
+  public CephCompositeCrcFileChecksum() {
+  }
+
+  public CephCompositeCrcFileChecksum(int crc) {
+    this.crc = crc;
+  }
+
+  public int getCrc() {
+    return crc;
+  }
+
+  @Override
+  public String getAlgorithmName() {
+    return ALGORITHM_NAME;
+  }
+
+  @Override
+  public int getLength() {
+    return 4;
+  }
+
+  /** The CRC, big-endian. */
+  @Override
+  public byte[] getBytes() {
+    return new byte[] {
+      (byte)(crc >>> 24), (byte)(crc >>> 16), (byte)(crc >>> 8), (byte)crc
+    };
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(crc);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    crc = in.readInt();
+  }
+
+  @Override
+  public String toString() {
+    return ALGORITHM_NAME + ":" + String.format("0x%08x", crc);
+  }
+
+  /**
+   * The CRC32C of A followed by B.
+   * @param crcA the CRC32C of A.
+   * @param crcB the CRC32C of B.
+   * @param lengthB the length of B in bytes.
+   */
+  static int compose(int crcA, int crcB, long lengthB) {
+    return multiply(crcA, monomial(lengthB)) ^ crcB;
+  }
+
+  /*
+   * x^(8 * lengthBytes) mod the polynomial, by squaring from x^8.
+   */
+  private static int monomial(long lengthBytes) {
+    if (lengthBytes < 0)
+      throw new IllegalArgumentException("Negative length: " + lengthBytes);
+    int product = MULTIPLICATIVE_IDENTITY;
+    int multiplier = MULTIPLICATIVE_IDENTITY >>> 8;
+    for (long degree = lengthBytes; degree > 0; degree >>= 1) {
+      if ((degree & 1) != 0)
+        product = multiply(product, multiplier);
+      multiplier = multiply(multiplier, multiplier);
+    }
+    return product;
+  }
+
+  /*
+   * p * q mod the polynomial in GF(2), both in the reflected bit order of
+   * the CRC.
+   */
+  private static int multiply(int p, int q) {
+    int sum = 0;
+    int px = p;
+    for (int term = MULTIPLICATIVE_IDENTITY; term != 0; term >>>= 1) {
+      if ((q & term) != 0)
+        sum ^= px;
+      /* multiply px by x; the bottom bit is the x^31 term */
+      boolean carry = (px & 1) != 0;
+      px >>>= 1;
+      if (carry)
+        px ^= CRC32C_POLYNOMIAL;
+    }
+    return sum;
+  }
+}
@@ -58,4 +58,110 @@ public class CephConfigKeys extends CommonConfigurationKeys {
 
   public static final String CEPH_PORT = "ceph.port";
   public static final int CEPH_PORT_DEFAULT = 6789;
+
+  public static final String CEPH_READAHEAD_MIN_KEY = "ceph.readahead.min";
+  public static final int    CEPH_READAHEAD_MIN_DEFAULT = 64*1024;
+
+  public static final String CEPH_READAHEAD_MAX_KEY = "ceph.readahead.max";
+  public static final int    CEPH_READAHEAD_MAX_DEFAULT = 2*1024*1024;
+
+  public static final String CEPH_SEEK_READTHROUGH_MAX_KEY = "ceph.seek.readthrough.max";
+  public static final int    CEPH_SEEK_READTHROUGH_MAX_DEFAULT = 64*1024;
+
+  public static final String  CEPH_PREFETCH_ENABLED_KEY = "ceph.prefetch.enabled";
+  public static final boolean CEPH_PREFETCH_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_PREFETCH_DEPTH_KEY = "ceph.prefetch.depth";
+  public static final int    CEPH_PREFETCH_DEPTH_DEFAULT = 4;
+
+  public static final String CEPH_PREFETCH_CHUNK_SIZE_KEY = "ceph.prefetch.chunk.size";
+  public static final int    CEPH_PREFETCH_CHUNK_SIZE_DEFAULT = 4*1024*1024;
+
+  public static final String CEPH_VECTORED_READ_MERGE_GAP_KEY = "ceph.vectored.read.merge.gap";
+  public static final int    CEPH_VECTORED_READ_MERGE_GAP_DEFAULT = 64*1024;
+
+  public static final String CEPH_VECTORED_READ_MERGE_MAX_KEY = "ceph.vectored.read.merge.max";
+  public static final int    CEPH_VECTORED_READ_MERGE_MAX_DEFAULT = 4*1024*1024;
+
+  public static final String CEPH_STRIPED_READ_THRESHOLD_KEY = "ceph.striped.read.threshold";
+  public static final int    CEPH_STRIPED_READ_THRESHOLD_DEFAULT = 16*1024*1024;
+
+  public static final String CEPH_STRIPED_READ_PIECE_MIN_KEY = "ceph.striped.read.piece.min";
+  public static final int    CEPH_STRIPED_READ_PIECE_MIN_DEFAULT = 4*1024*1024;
+
+  public static final String CEPH_STRIPED_READ_DEPTH_KEY = "ceph.striped.read.depth";
+  public static final int    CEPH_STRIPED_READ_DEPTH_DEFAULT = 8;
+
+  public static final String CEPH_IO_THREADS_KEY = "ceph.io.threads";
+  public static final int    CEPH_IO_THREADS_DEFAULT = 16;
+
+  public static final String CEPH_IO_SHUTDOWN_TIMEOUT_KEY = "ceph.io.shutdown.timeout.ms";
+  public static final long   CEPH_IO_SHUTDOWN_TIMEOUT_DEFAULT = 10*1000;
+
+  public static final String  CEPH_STREAM_LEAK_DETECTION_KEY = "ceph.stream.leak.detection";
+  public static final boolean CEPH_STREAM_LEAK_DETECTION_DEFAULT = false;
+
+  public static final String  CEPH_WRITE_BEHIND_ENABLED_KEY = "ceph.write.behind.enabled";
+  public static final boolean CEPH_WRITE_BEHIND_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_WRITE_BEHIND_INFLIGHT_MAX_KEY = "ceph.write.behind.inflight.max";
+  public static final long   CEPH_WRITE_BEHIND_INFLIGHT_MAX_DEFAULT = 8*1024*1024;
+
+  public static final String CEPH_WRITE_BEHIND_PARALLELISM_KEY = "ceph.write.behind.parallelism";
+  public static final int    CEPH_WRITE_BEHIND_PARALLELISM_DEFAULT = 4;
+
+  /* what OutputStream.flush() does: none, hflush or hsync */
+  public static final String CEPH_OUTPUT_FLUSH_POLICY_KEY = "ceph.output.flush.policy";
+  public static final String CEPH_OUTPUT_FLUSH_POLICY_DEFAULT = "hsync";
+
+  public static final String  CEPH_SYNC_GROUP_ENABLED_KEY = "ceph.sync.group.enabled";
+  public static final boolean CEPH_SYNC_GROUP_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_SYNC_GROUP_WINDOW_US_KEY = "ceph.sync.group.window.us";
+  public static final long   CEPH_SYNC_GROUP_WINDOW_US_DEFAULT = 0;
+
+  public static final String CEPH_SYNC_GROUP_MAX_LATENCY_US_KEY = "ceph.sync.group.max.latency.us";
+  public static final long   CEPH_SYNC_GROUP_MAX_LATENCY_US_DEFAULT = 2000;
+
+  public static final String CEPH_SYNC_GROUP_SYNCFS_MIN_KEY = "ceph.sync.group.syncfs.min";
+  public static final int    CEPH_SYNC_GROUP_SYNCFS_MIN_DEFAULT = 2;
+
+  public static final String  CEPH_CLOSE_ASYNC_ENABLED_KEY = "ceph.close.async.enabled";
+  public static final boolean CEPH_CLOSE_ASYNC_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_CLOSE_ASYNC_MAX_PENDING_KEY = "ceph.close.async.max.pending";
+  public static final int    CEPH_CLOSE_ASYNC_MAX_PENDING_DEFAULT = 64;
+
+  public static final String  CEPH_CHECKSUM_ENABLED_KEY = "ceph.checksum.enabled";
+  public static final boolean CEPH_CHECKSUM_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_CHECKSUM_CHUNK_SIZE_KEY = "ceph.checksum.chunk.size";
+  public static final long   CEPH_CHECKSUM_CHUNK_SIZE_DEFAULT = 8*1024*1024;
+
+  public static final String CEPH_CHECKSUM_CACHE_ENTRIES_KEY = "ceph.checksum.cache.entries";
+  public static final int    CEPH_CHECKSUM_CACHE_ENTRIES_DEFAULT = 1024;
+
+  public static final String CEPH_BUFFER_POOL_SIZE_KEY = "ceph.buffer.pool.size";
+  public static final long   CEPH_BUFFER_POOL_SIZE_DEFAULT = 64*1024*1024;
+
+  public static final String CEPH_BUFFER_SIZE_MAX_KEY = "ceph.buffer.size.max";
+  public static final int    CEPH_BUFFER_SIZE_MAX_DEFAULT = 2*1024*1024;
+
+  public static final String  CEPH_BLOCK_CACHE_ENABLED_KEY = "ceph.block.cache.enabled";
+  public static final boolean CEPH_BLOCK_CACHE_ENABLED_DEFAULT = false;
+
+  public static final String CEPH_BLOCK_CACHE_SIZE_KEY = "ceph.block.cache.size";
+  public static final long   CEPH_BLOCK_CACHE_SIZE_DEFAULT = 256*1024*1024;
+
+  public static final String CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY = "ceph.block.cache.block.size";
+  public static final int    CEPH_BLOCK_CACHE_BLOCK_SIZE_DEFAULT = 1024*1024;
+
+  public static final String  CEPH_BLOCK_CACHE_OFFHEAP_KEY = "ceph.block.cache.offheap";
+  public static final boolean CEPH_BLOCK_CACHE_OFFHEAP_DEFAULT = false;
+
+  public static final String CEPH_DISK_CACHE_DIR_KEY = "ceph.disk.cache.dir";
+  public static final String CEPH_DISK_CACHE_DIR_DEFAULT = null;
+
+  public static final String CEPH_DISK_CACHE_SIZE_KEY = "ceph.disk.cache.size";
+  public static final long   CEPH_DISK_CACHE_SIZE_DEFAULT = 10L*1024*1024*1024;
 }
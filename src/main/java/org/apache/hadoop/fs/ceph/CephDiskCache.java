@@ -0,0 +1,533 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Local disk tier of the CephFileSystem block cache.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * A bounded LRU cache of file blocks kept as files in a local directory,
+ * typically on an SSD. It sits behind the in-memory {@link CephBlockCache}:
+ * blocks evicted from memory, or never admitted to it, are still served
+ * locally instead of from the OSDs.
+ *
+ * Each block is stored in its own file. The set of cached blocks is kept
+ * in an append-only journal in the same directory, which is replayed and
+ * compacted when the cache is opened, so the contents survive a restart.
+ * The journal is also compacted whenever it holds more dead records than
+ * live ones. Entries carry the (mtime, size) version of the file they
+ * came from and are only served to streams that opened the same version.
+ * Block files that are missing, have the wrong length or are not in the
+ * journal are dropped on open.
+ *
+ * Neither block files nor the journal are synced to disk, so after a
+ * power loss a journaled block may hold zeros or a torn write. Every
+ * journal record carries the CRC32C of its block, and a recovered block
+ * is checked against it the first time it is read; one that does not
+ * match is dropped.
+ *
+ * The disk tier is best effort: local I/O errors are logged and turn into
+ * cache misses. A directory can only be used by one process at a time; a
+ * second one finds it locked and runs without the disk tier.
+ */
+public class CephDiskCache {
+  private static final Log LOG = LogFactory.getLog(CephDiskCache.class);
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  static final String JOURNAL = "journal";
+  static final String LOCK = "lock";
+  private static final String BLOCK_PREFIX = "blk_";
+  /* no compaction below this many journal records */
+  static final int JOURNAL_COMPACT_MIN = 64;
+
+  private static final class Entry {
+    final long id;
+    final int length;
+    final int crc;
+    /* false for blocks recovered from a previous process until read back */
+    volatile boolean verified;
+
+    Entry(long id, int length, int crc, boolean verified) {
+      this.id = id;
+      this.length = length;
+      this.crc = crc;
+      this.verified = verified;
+    }
+  }
+
+  private final File dir;
+  private final long capacity;
+
+  private final LinkedHashMap<CephBlockCache.Key, Entry> entries =
+    new LinkedHashMap<CephBlockCache.Key, Entry>(16, 0.75f, true);
+  /* the version of each path blocks are admitted for */
+  private final Map<String, CephBlockCache.Key> versions =
+    new HashMap<String, CephBlockCache.Key>();
+
+  private FileChannel lockChannel;
+  private FileLock lock;
+  private Writer journal;
+  /* records in the journal file, live or not */
+  private long journalRecords = 0;
+  private long nextId = 0;
+
+  private long cachedBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+
+  /**
+   * Open the cache in dir, recovering whatever a previous process left
+   * there.
+   * @throws IOException if the directory cannot be used.
+   */
+  CephDiskCache(File dir, long capacity) throws IOException {
+    this.dir = dir;
+    this.capacity = capacity;
+
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Cannot create disk cache directory " + dir);
+    lockChannel = new RandomAccessFile(new File(dir, LOCK), "rw").getChannel();
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      /* held by another file system in this JVM */
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Disk cache directory " + dir
+          + " is in use by another process");
+    }
+
+    try {
+      recover();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /*
+   * Replay the journal, drop anything that does not check out, and write
+   * a compacted journal.
+   */
+  private void recover() throws IOException {
+    File file = new File(dir, JOURNAL);
+    if (file.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), UTF_8));
+      try {
+        HashMap<Long, CephBlockCache.Key> ids =
+          new HashMap<Long, CephBlockCache.Key>();
+        String line;
+        while ((line = in.readLine()) != null)
+          replay(line, ids);
+      } finally {
+        in.close();
+      }
+    }
+
+    Iterator<Map.Entry<CephBlockCache.Key, Entry>> it =
+      entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<CephBlockCache.Key, Entry> e = it.next();
+      if (blockFile(e.getValue().id).length() != e.getValue().length) {
+        cachedBytes -= e.getValue().length;
+        it.remove();
+      }
+    }
+
+    HashMap<String, Entry> live = new HashMap<String, Entry>();
+    for (Entry e : entries.values())
+      live.put(BLOCK_PREFIX + e.id, e);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (!name.equals(JOURNAL) && !name.equals(LOCK) &&
+            !live.containsKey(name))
+          f.delete();
+      }
+    }
+
+    versions.clear();
+    for (CephBlockCache.Key key : entries.keySet())
+      versions.put(key.path, key);
+
+    writeJournal();
+    evict();
+    flushJournal();
+    LOG.debug("Recovered " + this);
+  }
+
+  /*
+   * Replace the journal with one holding a record per live block, and
+   * reopen it for appending.
+   */
+  private void writeJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    File file = new File(dir, JOURNAL);
+    File tmp = new File(dir, JOURNAL + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(tmp),
+        UTF_8);
+    try {
+      for (Map.Entry<CephBlockCache.Key, Entry> e : entries.entrySet())
+        out.write(addRecord(e.getKey(), e.getValue()));
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file))
+      throw new IOException("Cannot replace disk cache journal " + file);
+
+    journal = new OutputStreamWriter(new FileOutputStream(file, true),
+        UTF_8);
+    journalRecords = entries.size();
+  }
+
+  /*
+   * Compact the journal once dead records outnumber live ones. A journal
+   * that cannot be rewritten turns the disk tier off.
+   */
+  private void maybeCompactJournal() {
+    long dead = journalRecords - entries.size();
+    if (journal == null || journalRecords < JOURNAL_COMPACT_MIN ||
+        dead <= entries.size())
+      return;
+    try {
+      writeJournal();
+    } catch (IOException ioe) {
+      LOG.warn("Cannot compact disk cache journal, disabling disk cache in "
+          + dir + ": " + ioe);
+      journal = null;
+    }
+  }
+
+  private void appendJournal(String record) {
+    try {
+      if (journal != null) {
+        journal.write(record);
+        journalRecords++;
+      }
+    } catch (IOException ioe) {
+      LOG.warn("Cannot append to disk cache journal: " + ioe);
+    }
+  }
+
+  /*
+   * Journal records are "+ id length crc mtime size block path" for an
+   * added block and "- id" for a removed one. The path is last since it
+   * may contain spaces.
+   */
+  private void replay(String line, Map<Long, CephBlockCache.Key> ids) {
+    String[] f = line.split(" ", 8);
+    try {
+      if (f[0].equals("+") && f.length == 8) {
+        long id = Long.parseLong(f[1]);
+        Entry e = new Entry(id, Integer.parseInt(f[2]),
+            (int) Long.parseLong(f[3], 16), false);
+        CephBlockCache.Key key = new CephBlockCache.Key(f[7],
+            Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]));
+        Entry old = entries.put(key, e);
+        if (old != null)
+          cachedBytes -= old.length;
+        cachedBytes += e.length;
+        ids.put(id, key);
+        nextId = Math.max(nextId, id + 1);
+      } else if (f[0].equals("-") && f.length == 2) {
+        CephBlockCache.Key key = ids.remove(Long.parseLong(f[1]));
+        Entry e = key == null ? null : entries.get(key);
+        if (e != null && e.id == Long.parseLong(f[1])) {
+          cachedBytes -= e.length;
+          entries.remove(key);
+        }
+      }
+    } catch (NumberFormatException e) {
+      /* a torn last record after a crash */
+      LOG.debug("Ignoring disk cache journal record: " + line);
+    }
+  }
+
+  private static String addRecord(CephBlockCache.Key key, Entry e) {
+    return "+ " + e.id + " " + e.length + " "
+      + Long.toHexString(e.crc & 0xffffffffL) + " " + key.mtime + " "
+      + key.size + " " + key.block + " " + key.path + "\n";
+  }
+
+  private File blockFile(long id) {
+    return new File(dir, BLOCK_PREFIX + id);
+  }
+
+  /**
+   * Drop the blocks of path unless they belong to the given version, and
+   * only admit blocks of that version from now on.
+   */
+  synchronized void open(String path, long mtime, long size) {
+    CephBlockCache.Key current = versions.get(path);
+    if (current != null && current.sameVersion(mtime, size))
+      return;
+    if (current != null)
+      invalidate(path);
+    versions.put(path, new CephBlockCache.Key(path, mtime, size, -1));
+  }
+
+  /**
+   * Drop all cached blocks of path.
+   */
+  synchronized void invalidate(String path) {
+    Iterator<Map.Entry<CephBlockCache.Key, Entry>> it =
+      entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<CephBlockCache.Key, Entry> e = it.next();
+      if (e.getKey().path.equals(path)) {
+        remove(e.getValue());
+        invalidations++;
+        it.remove();
+      }
+    }
+    versions.remove(path);
+    maybeCompactJournal();
+    flushJournal();
+  }
+
+  /**
+   * Read a cached block into dst.
+   * @return the length of the block, or -1 if it is not cached.
+   */
+  int get(CephBlockCache.Key key, byte[] dst) {
+    Entry e;
+    synchronized (this) {
+      e = entries.get(key);
+      if (e == null || journal == null) {
+        misses++;
+        return -1;
+      }
+    }
+
+    /* an unlinked block file stays readable while we have it open */
+    try {
+      FileInputStream in = new FileInputStream(blockFile(e.id));
+      try {
+        FileChannel ch = in.getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(dst, 0, e.length);
+        while (buf.hasRemaining()) {
+          if (ch.read(buf) < 0)
+            throw new IOException("short block file " + blockFile(e.id));
+        }
+        if (!e.verified) {
+          if (crc32c(dst, e.length) != e.crc)
+            throw new IOException("checksum mismatch in " + blockFile(e.id));
+          e.verified = true;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException ioe) {
+      LOG.warn("Dropping unreadable disk cache block " + key.path + "@"
+          + key.block + ": " + ioe);
+      synchronized (this) {
+        if (entries.get(key) == e) {
+          entries.remove(key);
+          remove(e);
+          flushJournal();
+        }
+        misses++;
+      }
+      return -1;
+    }
+
+    synchronized (this) {
+      hits++;
+    }
+    return e.length;
+  }
+
+  /**
+   * Store a block. The data is written to a new file before the block is
+   * entered in the journal together with its checksum, so a block left
+   * partial by a crash is caught when it is read after recovery.
+   */
+  void put(CephBlockCache.Key key, byte[] src, int length) {
+    if (length <= 0 || length > capacity)
+      return;
+    long id;
+    synchronized (this) {
+      if (journal == null || entries.containsKey(key))
+        return;
+      id = nextId++;
+    }
+    int crc = crc32c(src, length);
+
+    File file = blockFile(id);
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        out.write(src, 0, length);
+      } finally {
+        out.close();
+      }
+    } catch (IOException ioe) {
+      LOG.warn("Cannot write disk cache block " + file + ": " + ioe);
+      file.delete();
+      return;
+    }
+
+    synchronized (this) {
+      CephBlockCache.Key current = versions.get(key.path);
+      if (journal == null || entries.containsKey(key) ||
+          current == null || !current.sameVersion(key.mtime, key.size)) {
+        file.delete();
+        return;
+      }
+      Entry e = new Entry(id, length, crc, true);
+      entries.put(key, e);
+      cachedBytes += length;
+      appendJournal(addRecord(key, e));
+      evict();
+      maybeCompactJournal();
+      flushJournal();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<CephBlockCache.Key, Entry>> it =
+      entries.entrySet().iterator();
+    while (cachedBytes > capacity && it.hasNext()) {
+      Map.Entry<CephBlockCache.Key, Entry> e = it.next();
+      remove(e.getValue());
+      evictions++;
+      it.remove();
+    }
+  }
+
+  /*
+   * Delete a block's file and journal its removal. The caller takes it
+   * out of the index.
+   */
+  private void remove(Entry e) {
+    cachedBytes -= e.length;
+    blockFile(e.id).delete();
+    appendJournal("- " + e.id + "\n");
+  }
+
+  private static int crc32c(byte[] buf, int length) {
+    PureJavaCrc32C crc = new PureJavaCrc32C();
+    crc.update(buf, 0, length);
+    return (int) crc.getValue();
+  }
+
+  private void flushJournal() {
+    try {
+      if (journal != null)
+        journal.flush();
+    } catch (IOException ioe) {
+      LOG.warn("Cannot flush disk cache journal: " + ioe);
+    }
+  }
+
+  /**
+   * Close the journal and release the directory. Cached blocks stay on
+   * disk for the next process.
+   */
+  synchronized void close() {
+    try {
+      if (journal != null)
+        journal.close();
+      if (lock != null)
+        lock.release();
+      lockChannel.close();
+    } catch (IOException e) {
+      LOG.warn("Error closing disk cache in " + dir + ": " + e);
+    }
+    journal = null;
+    lock = null;
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /** Number of block lookups served from local disk. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Number of block lookups not found on local disk. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Number of blocks dropped to stay within the capacity. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Number of blocks dropped because their file changed. */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /** Bytes of block data currently on disk. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /** Number of blocks currently on disk. */
+  public synchronized int getBlockCount() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephDiskCache[dir=" + dir + " capacity=" + capacity
+      + " cached=" + cachedBytes + " blocks=" + entries.size()
+      + " hits=" + hits + " misses=" + misses + " evictions=" + evictions
+      + " invalidations=" + invalidations + "]";
+  }
+}
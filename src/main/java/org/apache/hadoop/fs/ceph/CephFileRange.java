@@ -0,0 +1,77 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * A byte range of a file requested through a vectored read.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A range of a file to be read by
+ * {@link CephInputStream#readVectored(java.util.List)}. Once the read has
+ * been issued, {@link #getData()} completes with a buffer holding exactly
+ * the bytes of this range, or fails with the error that prevented reading
+ * it. The future is a plain {@link Future}, so callers do not depend on
+ * the Guava version shipped with Hadoop.
+ */
+public class CephFileRange {
+  private final long offset;
+  private final int length;
+  private SettableFuture<ByteBuffer> data = null;
+
+  public CephFileRange(long offset, int length) {
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Get the result of the most recent vectored read of this range, or
+   * null if it has not been read yet.
+   */
+  public synchronized Future<ByteBuffer> getData() {
+    return data;
+  }
+
+  synchronized void reset() {
+    data = SettableFuture.create();
+  }
+
+  synchronized void complete(ByteBuffer buf) {
+    data.set(buf);
+  }
+
+  synchronized void fail(Throwable t) {
+    data.setException(t);
+  }
+
+  @Override
+  public String toString() {
+    return "range[" + offset + "," + (offset + length) + ")";
+  }
+}
@@ -21,6 +21,7 @@
 package org.apache.hadoop.fs.ceph;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.OutputStream;
@@ -29,8 +30,15 @@ import java.net.InetAddress;
 import java.util.EnumSet;
 import java.lang.Math;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,6 +52,7 @@ import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.net.DNS;
@@ -57,6 +66,8 @@ import com.ceph.fs.CephStatVFS;
 import com.ceph.crush.Bucket;
 import com.ceph.fs.CephFileExtent;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 
 /**
  * Known Issues:
@@ -71,6 +82,18 @@ public class CephFileSystem extends FileSystem {
   private CephFsProto ceph = null;
   private static final int CEPH_STRIPE_COUNT = 1;
   private TreeMap<Integer, String> datapools = null;
+  private ThreadPoolExecutor ioExecutor = null;
+  private long ioShutdownTimeout;
+  private CephBufferPool bufferPool = null;
+  private CephBlockCache blockCache = null;
+  private CephStreamRegistry streamRegistry = null;
+  private CephSyncCoordinator syncCoordinator = null;
+  private CephCloseCompleter closeCompleter = null;
+  private CephChecksumStore checksumStore = null;
+  /* replication of the data pools seen by getFileStatus, by pool name */
+  private final ConcurrentHashMap<String, Short> poolReplication =
+    new ConcurrentHashMap<String, Short>();
+  private volatile boolean layoutXattrs = true;
 
   /**
    * Create a new CephFileSystem.
@@ -85,6 +108,16 @@ public class CephFileSystem extends FileSystem {
     setConf(conf);
   }
 
+  /**
+   * Create a new CephFileSystem on top of the given Ceph interface.
+   *
+   * Package-private: used by unit tests
+   */
+  CephFileSystem(Configuration conf, CephFsProto ceph) {
+    setConf(conf);
+    this.ceph = ceph;
+  }
+
   /**
    * Create an absolute path using the working directory.
    */
@@ -107,10 +140,94 @@ public class CephFileSystem extends FileSystem {
     }
     ceph.initialize(uri, conf);
     setConf(conf);
+
+    /*
+     * Background reads issued on behalf of streams (e.g. prefetching) share
+     * a bounded pool of daemon threads. Idle threads exit.
+     */
+    int threads = conf.getInt(
+        CephConfigKeys.CEPH_IO_THREADS_KEY,
+        CephConfigKeys.CEPH_IO_THREADS_DEFAULT);
+    ioExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("ceph-io-%d").build());
+    ioExecutor.allowCoreThreadTimeOut(true);
+    ioShutdownTimeout = conf.getLong(
+        CephConfigKeys.CEPH_IO_SHUTDOWN_TIMEOUT_KEY,
+        CephConfigKeys.CEPH_IO_SHUTDOWN_TIMEOUT_DEFAULT);
+
+    streamRegistry = new CephStreamRegistry(ceph, conf.getBoolean(
+        CephConfigKeys.CEPH_STREAM_LEAK_DETECTION_KEY,
+        CephConfigKeys.CEPH_STREAM_LEAK_DETECTION_DEFAULT));
+
+    if (conf.getBoolean(CephConfigKeys.CEPH_SYNC_GROUP_ENABLED_KEY,
+          CephConfigKeys.CEPH_SYNC_GROUP_ENABLED_DEFAULT)) {
+      syncCoordinator = new CephSyncCoordinator(ceph,
+          conf.getLong(CephConfigKeys.CEPH_SYNC_GROUP_WINDOW_US_KEY,
+            CephConfigKeys.CEPH_SYNC_GROUP_WINDOW_US_DEFAULT),
+          conf.getLong(CephConfigKeys.CEPH_SYNC_GROUP_MAX_LATENCY_US_KEY,
+            CephConfigKeys.CEPH_SYNC_GROUP_MAX_LATENCY_US_DEFAULT),
+          conf.getInt(CephConfigKeys.CEPH_SYNC_GROUP_SYNCFS_MIN_KEY,
+            CephConfigKeys.CEPH_SYNC_GROUP_SYNCFS_MIN_DEFAULT));
+    }
+
+    if (conf.getBoolean(CephConfigKeys.CEPH_CLOSE_ASYNC_ENABLED_KEY,
+          CephConfigKeys.CEPH_CLOSE_ASYNC_ENABLED_DEFAULT)) {
+      closeCompleter = new CephCloseCompleter(ceph, ioExecutor,
+          conf.getInt(CephConfigKeys.CEPH_CLOSE_ASYNC_MAX_PENDING_KEY,
+            CephConfigKeys.CEPH_CLOSE_ASYNC_MAX_PENDING_DEFAULT),
+          syncCoordinator);
+    }
+
+    if (conf.getBoolean(CephConfigKeys.CEPH_CHECKSUM_ENABLED_KEY,
+          CephConfigKeys.CEPH_CHECKSUM_ENABLED_DEFAULT)) {
+      checksumStore = new CephChecksumStore(ceph, ioExecutor, threads,
+          conf.getLong(CephConfigKeys.CEPH_CHECKSUM_CHUNK_SIZE_KEY,
+            CephConfigKeys.CEPH_CHECKSUM_CHUNK_SIZE_DEFAULT),
+          conf.getInt(CephConfigKeys.CEPH_CHECKSUM_CACHE_ENTRIES_KEY,
+            CephConfigKeys.CEPH_CHECKSUM_CACHE_ENTRIES_DEFAULT));
+    }
+
+    bufferPool = new CephBufferPool(conf.getLong(
+        CephConfigKeys.CEPH_BUFFER_POOL_SIZE_KEY,
+        CephConfigKeys.CEPH_BUFFER_POOL_SIZE_DEFAULT));
+
+    if (conf.getBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY,
+          CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_DEFAULT)) {
+      blockCache = new CephBlockCache(
+          conf.getLong(CephConfigKeys.CEPH_BLOCK_CACHE_SIZE_KEY,
+            CephConfigKeys.CEPH_BLOCK_CACHE_SIZE_DEFAULT),
+          conf.getInt(CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY,
+            CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_DEFAULT),
+          conf.getBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_OFFHEAP_KEY,
+            CephConfigKeys.CEPH_BLOCK_CACHE_OFFHEAP_DEFAULT),
+          openDiskCache(conf));
+    }
+
     this.uri = URI.create(uri.getScheme() + "://" + uri.getAuthority());
     this.workingDir = getHomeDirectory();
   }
 
+  /*
+   * Open the local disk tier of the block cache if ceph.disk.cache.dir is
+   * set. A directory that cannot be used only costs us the cache.
+   */
+  private CephDiskCache openDiskCache(Configuration conf) {
+    String dir = conf.get(CephConfigKeys.CEPH_DISK_CACHE_DIR_KEY,
+        CephConfigKeys.CEPH_DISK_CACHE_DIR_DEFAULT);
+    if (dir == null)
+      return null;
+    try {
+      return new CephDiskCache(new File(dir), conf.getLong(
+            CephConfigKeys.CEPH_DISK_CACHE_SIZE_KEY,
+            CephConfigKeys.CEPH_DISK_CACHE_SIZE_DEFAULT));
+    } catch (IOException e) {
+      LOG.warn("Not using disk cache in " + dir + ": " + e.getMessage());
+      return null;
+    }
+  }
+
   /**
    * Open a Ceph file and attach the file handle to an FSDataInputStream.
    * @param path The file to open
@@ -130,19 +247,86 @@ public class CephFileSystem extends FileSystem {
     CephStat stat = new CephStat();
     ceph.fstat(fd, stat);
 
+    CephBlockCache.CachedFile cachedFile = null;
+    if (blockCache != null)
+      cachedFile = blockCache.open(path.toUri().getPath(), stat.m_time,
+          stat.size);
+
     CephInputStream istream = new CephInputStream(getConf(), ceph, fd,
-        stat.size, bufferSize);
+        stat.size, streamBufferSize(bufferSize, stat.size), ioExecutor,
+        bufferPool, cachedFile, streamRegistry);
     return new FSDataInputStream(istream);
   }
 
   /**
-   * Close down the CephFileSystem. Runs the base-class close method
-   * and then kills the Ceph client itself.
+   * Close down the CephFileSystem. Runs the base-class close method, waits
+   * for streams closed in async mode to complete and then kills the Ceph
+   * client itself.
+   * @throws IOException if an async close failed.
    */
   @Override
   public void close() throws IOException {
     super.close(); // this method does stuff, make sure it's run!
+    IOException closeFailure = null;
+    if (closeCompleter != null) {
+      try {
+        closeCompleter.await();
+      } catch (IOException e) {
+        closeFailure = e;
+      }
+      LOG.debug("close: " + closeCompleter);
+    }
+    if (ioExecutor != null)
+      shutdownIoExecutor();
+    if (streamRegistry != null) {
+      LOG.debug("close: " + streamRegistry);
+      streamRegistry.close();
+    }
+    if (syncCoordinator != null)
+      LOG.debug("close: " + syncCoordinator);
+    if (checksumStore != null)
+      LOG.debug("close: " + checksumStore);
+    if (bufferPool != null) {
+      LOG.debug("close: " + bufferPool);
+      bufferPool.clear();
+    }
+    if (blockCache != null) {
+      LOG.debug("close: " + blockCache);
+      blockCache.close();
+    }
     ceph.shutdown();
+    if (closeFailure != null)
+      throw closeFailure;
+  }
+
+  /*
+   * Let queued background I/O finish for up to
+   * ceph.io.shutdown.timeout.ms, then drop what is left
+   * without leaving anybody waiting on it: dropped reads are cancelled,
+   * which fails the reads waiting for them, and any other dropped task,
+   * such as a stream's background writer, is run here as it would be had
+   * the executor rejected it.
+   */
+  private void shutdownIoExecutor() {
+    ioExecutor.shutdown();
+    boolean interrupted = false;
+    try {
+      if (ioExecutor.awaitTermination(ioShutdownTimeout,
+            TimeUnit.MILLISECONDS))
+        return;
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
+    List<Runnable> dropped = ioExecutor.shutdownNow();
+    LOG.debug("close: dropping " + dropped.size() + " background I/O tasks");
+    for (Runnable task : dropped) {
+      if (task instanceof Future)
+        ((Future<?>) task).cancel(false);
+      else
+        task.run();
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
   }
 
   /**
@@ -168,11 +352,129 @@ public class CephFileSystem extends FileSystem {
       progress.progress();
     }
 
+    invalidateCache(path);
+    CephChecksumStore.Tracker checksum = null;
+    if (checksumStore != null) {
+      try {
+        checksum = checksumStore.track(path, fd, true);
+      } catch (IOException e) {
+        ceph.close(fd);
+        throw e;
+      }
+    }
+
     CephOutputStream ostream = new CephOutputStream(getConf(), ceph, fd,
-        bufferSize);
+        outputBufferSize(), ioExecutor, bufferPool,
+        streamRegistry, syncCoordinator, closeCompleter, checksum);
     return new FSDataOutputStream(ostream, statistics);
   }
 
+  /**
+   * Size an output stream buffer. Output buffers are not shrunk to the
+   * requested bufferSize: Hadoop's default of 4 KiB would turn every few
+   * KiB written into a libcephfs call. They get ceph.buffer.size.max,
+   * rounded up to the stripe unit granularity, and are only held while
+   * the stream is open.
+   */
+  private int outputBufferSize() {
+    return streamBufferSize(-1, -1);
+  }
+
+  /**
+   * Size a stream buffer. The requested size is capped by
+   * ceph.buffer.size.max and rounded up to the stripe unit granularity,
+   * but a stream never gets a buffer larger than the file it reads.
+   * @param requested the bufferSize passed to open/create/append.
+   * @param length the file length, or -1 if unknown.
+   */
+  private int streamBufferSize(int requested, long length) {
+    int max = getConf().getInt(
+        CephConfigKeys.CEPH_BUFFER_SIZE_MAX_KEY,
+        CephConfigKeys.CEPH_BUFFER_SIZE_MAX_DEFAULT);
+    long size = requested > 0 ? Math.min(requested, max) : max;
+
+    int su = ceph.get_stripe_unit_granularity();
+    if (su > 0 && size % su != 0)
+      size = size - (size % su) + su;
+
+    if (length >= 0)
+      size = Math.min(size, Math.max(length, 1));
+    return (int) size;
+  }
+
+  /**
+   * Get the pool of I/O buffers shared by this file system's streams. Its
+   * hit, miss and outstanding byte counts are exposed for monitoring.
+   */
+  public CephBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Get the block cache shared by this file system's input streams, or null
+   * if ceph.block.cache.enabled is off. Its hit, miss, eviction and
+   * invalidation counts are exposed for monitoring.
+   */
+  public CephBlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  /**
+   * Get the registry of streams open on this file system. It reports the
+   * Ceph file handles held by open streams, how many input streams hold or
+   * have released their read buffer, and how many streams leaked.
+   */
+  public CephStreamRegistry getStreamRegistry() {
+    return streamRegistry;
+  }
+
+  /**
+   * Get the group commit coordinator of hsync calls, or null if group
+   * commit is disabled.
+   */
+  public CephSyncCoordinator getSyncCoordinator() {
+    return syncCoordinator;
+  }
+
+  /**
+   * Get the store of file checksums, or null if ceph.checksum.enabled is
+   * off. It counts checksums stored by streams, served without reading
+   * the file, and computed by reading it.
+   */
+  public CephChecksumStore getChecksumStore() {
+    return checksumStore;
+  }
+
+  /**
+   * Wait until every output stream closed in async mode has been synced
+   * and closed.
+   * @throws IOException if any of them failed since the last call.
+   */
+  public void awaitAsyncCloses() throws IOException {
+    if (closeCompleter != null)
+      closeCompleter.await();
+  }
+
+  /**
+   * Get the completer of async output stream closes, or null if closes
+   * are synchronous.
+   */
+  public CephCloseCompleter getCloseCompleter() {
+    return closeCompleter;
+  }
+
+  /*
+   * Drop cached blocks of a file changed through this file system. Changes
+   * made elsewhere are caught by the version check when the file is next
+   * opened.
+   */
+  private void invalidateCache(Path path) {
+    if (blockCache != null)
+      blockCache.invalidate(path.toUri().getPath());
+    if (checksumStore != null)
+      checksumStore.invalidate(path);
+  }
+
   public Path getWorkingDirectory() {
     return workingDir;
   }
@@ -232,7 +534,7 @@ public class CephFileSystem extends FileSystem {
     ceph.lstat(path, stat);
 
     FileStatus status = new FileStatus(stat.size, stat.isDir(),
-          ceph.get_file_replication(path), stat.blksize, stat.m_time,
+          getFileReplication(path, stat), stat.blksize, stat.m_time,
           stat.a_time, new FsPermission((short) stat.mode),
           System.getProperty("user.name"), null, path.makeQualified(this));
 
@@ -316,6 +618,38 @@ public class CephFileSystem extends FileSystem {
     return ceph.get_pool_replication(pool_id);
   }
 
+  /*
+   * Replication of a file, which is that of its data pool. The pool comes
+   * from the file's layout xattr, saving the open of the file that
+   * get_file_replication needs, and the replication of each pool is
+   * looked up once. A client that does not provide the xattr is not
+   * asked again; any other failure to read it falls back to
+   * get_file_replication for this file only.
+   */
+  private short getFileReplication(Path path, CephStat stat)
+      throws IOException {
+    if (!stat.isFile())
+      return 1;
+    String pool = null;
+    if (layoutXattrs) {
+      try {
+        pool = ceph.get_file_pool_name(path);
+        if (pool == null)
+          layoutXattrs = false;
+      } catch (IOException e) {
+        LOG.debug("Cannot read layout pool of " + path + ": " + e);
+      }
+    }
+    if (pool == null)
+      return ceph.get_file_replication(path);
+    Short replication = poolReplication.get(pool);
+    if (replication == null) {
+      replication = Short.valueOf((short) getPoolReplication(pool));
+      poolReplication.put(pool, replication);
+    }
+    return replication.shortValue();
+  }
+
   /**
    * Select a data pool given the requested replication factor.
    */
@@ -391,6 +725,60 @@ public class CephFileSystem extends FileSystem {
   public FSDataOutputStream create(Path path, FsPermission permission,
       boolean overwrite, int bufferSize, short replication, long blockSize,
       Progressable progress) throws IOException {
+    int fd = createFile(path, permission, overwrite, replication, blockSize,
+        progress);
+
+    CephChecksumStore.Tracker checksum = null;
+    if (checksumStore != null)
+      checksum = checksumStore.track(makeAbsolute(path), fd, false);
+
+    OutputStream ostream = new CephOutputStream(getConf(), ceph, fd,
+        outputBufferSize(), ioExecutor, bufferPool,
+        streamRegistry, syncCoordinator, closeCompleter, checksum);
+    return new FSDataOutputStream(ostream, statistics);
+  }
+
+  /**
+   * Create a new file for writing at explicit offsets, e.g. by several
+   * threads filling disjoint ranges of it at once. The file is synced
+   * once, when the returned writer is closed.
+   * @param path The file to create.
+   * @param permission The permissions to apply to the file.
+   * @param overwrite If true, overwrite any existing file with this name.
+   * @param replication Replication factor, as for create().
+   * @param blockSize The object size of the file, as for create().
+   * @return a writer for the created file.
+   * @throws IOException if the file cannot be created.
+   */
+  public CephPositionalWriter createPositional(Path path,
+      FsPermission permission, boolean overwrite, short replication,
+      long blockSize) throws IOException {
+    int fd = createFile(path, permission, overwrite, replication, blockSize,
+        null);
+    return new CephPositionalWriter(ceph, fd, bufferPool, streamRegistry,
+        syncCoordinator);
+  }
+
+  /**
+   * Create a new file for writing at explicit offsets, with the default
+   * permission, replication and block size.
+   * @see #createPositional(Path, FsPermission, boolean, short, long)
+   */
+  public CephPositionalWriter createPositional(Path path, boolean overwrite)
+      throws IOException {
+    FsPermission permission = FsPermission.getFileDefault().applyUMask(
+        FsPermission.getUMask(getConf()));
+    return createPositional(path, permission, overwrite,
+        getDefaultReplication(path), getDefaultBlockSize(path));
+  }
+
+  /*
+   * Open a new file for writing with the layout create() promises, and
+   * return its file handle.
+   */
+  private int createFile(Path path, FsPermission permission,
+      boolean overwrite, short replication, long blockSize,
+      Progressable progress) throws IOException {
 
     path = makeAbsolute(path);
 
@@ -403,9 +791,10 @@ public class CephFileSystem extends FileSystem {
     int flags = CephMount.O_WRONLY | CephMount.O_CREAT;
 
     if (exists) {
-      if (overwrite)
+      if (overwrite) {
         flags |= CephMount.O_TRUNC;
-      else
+        invalidateCache(path);
+      } else
         throw new FileAlreadyExistsException();
     } else {
       Path parent = path.getParent();
@@ -460,10 +849,7 @@ public class CephFileSystem extends FileSystem {
     if (progress != null) {
       progress.progress();
     }
-
-    OutputStream ostream = new CephOutputStream(getConf(), ceph, fd,
-        bufferSize);
-    return new FSDataOutputStream(ostream, statistics);
+    return fd;
   }
 
   /**
@@ -524,6 +910,8 @@ public class CephFileSystem extends FileSystem {
 
     try {
       ceph.rename(src, dst);
+      invalidateCache(src);
+      invalidateCache(dst);
     } catch (FileNotFoundException e) {
       throw e;
     } catch (Exception e) {
@@ -617,6 +1005,7 @@ public class CephFileSystem extends FileSystem {
     /* we're done if its a file */
     if (status.isFile()) {
       ceph.unlink(path);
+      invalidateCache(path);
       return true;
     }
 
@@ -637,6 +1026,21 @@ public class CephFileSystem extends FileSystem {
     return true;
   }
 
+  /**
+   * Get the composite CRC32C checksum of a file, as computed by HDFS with
+   * dfs.checksum.combine.mode=COMPOSITE_CRC. Files written by this file
+   * system have it stored; others are read to compute it.
+   * @return the checksum, or null if ceph.checksum.enabled is off or path
+   * is a directory.
+   * @throws FileNotFoundException if the path does not exist.
+   */
+  @Override
+  public FileChecksum getFileChecksum(Path path) throws IOException {
+    if (checksumStore == null)
+      return null;
+    return checksumStore.getFileChecksum(makeAbsolute(path));
+  }
+
   @Override
   public short getDefaultReplication() {
     return ceph.getDefaultReplication();
@@ -25,6 +25,7 @@ package org.apache.hadoop.fs.ceph;
 import java.io.IOException;
 import java.net.URI;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.conf.Configuration;
@@ -36,6 +37,9 @@ import com.ceph.crush.Bucket;
 import com.ceph.fs.CephFileExtent;
 
 abstract class CephFsProto {
+  /* the most a staged write copies at a time */
+  static final int STAGING_SIZE = 1 << 20;
+
 
   abstract void initialize(URI uri, Configuration conf) throws IOException;
   abstract int __open(Path path, int flags, int mode) throws IOException;
@@ -58,13 +62,49 @@ abstract class CephFsProto {
   abstract short get_file_replication(Path path) throws IOException;
   abstract int write(int fd, byte[] buf, long size, long offset) throws IOException;
   abstract int read(int fd, byte[] buf, long size, long offset) throws IOException;
+  abstract int read(int fd, byte[] buf, int bufOffset, long size, long offset) throws IOException;
   abstract void mkdirs(Path path, int mode) throws IOException;
   abstract int get_stripe_unit_granularity();
+  abstract int get_file_stripe_unit(int fd) throws IOException;
   abstract String get_file_pool_name(int fd);
+  abstract String get_file_pool_name(Path path) throws IOException;
   abstract int get_pool_id(String pool_name) throws IOException;;
   abstract int get_pool_replication(int poolid) throws IOException;
   abstract InetAddress get_osd_address(int osd) throws IOException;
   abstract Bucket[] get_osd_crush_location(int osd) throws IOException;
   abstract CephFileExtent get_file_extent(int fd, long offset) throws IOException;
   abstract void fsync(int fd) throws IOException;
+  abstract void sync_fs() throws IOException;
+  abstract byte[] lgetxattr(Path path, String name) throws IOException;
+  abstract void lsetxattr(Path path, String name, byte[] value) throws IOException;
+
+  /*
+   * Write up to buf.remaining() bytes from a ByteBuffer, advancing its
+   * position by the number written. libcephfs-jni takes neither a
+   * ByteBuffer nor an array offset, so only a heap buffer whose data
+   * starts at index zero of its array is written in place. Anything else,
+   * such as a direct buffer or the tail left by a partial write, is copied
+   * into a buffer from pool, at most STAGING_SIZE bytes at a time.
+   */
+  int write(int fd, ByteBuffer buf, long offset, CephBufferPool pool)
+      throws IOException {
+    if (buf.hasArray() && buf.arrayOffset() + buf.position() == 0) {
+      int ret = write(fd, buf.array(), buf.remaining(), offset);
+      if (ret > 0)
+        buf.position(buf.position() + ret);
+      return ret;
+    }
+
+    int size = Math.min(buf.remaining(), STAGING_SIZE);
+    byte[] staging = pool.acquire(size);
+    try {
+      buf.duplicate().get(staging, 0, size);
+      int ret = write(fd, staging, size, offset);
+      if (ret > 0)
+        buf.position(buf.position() + ret);
+      return ret;
+    } finally {
+      pool.release(staging);
+    }
+  }
 }
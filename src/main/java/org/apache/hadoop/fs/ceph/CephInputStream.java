@@ -21,23 +21,44 @@
 package org.apache.hadoop.fs.ceph;
 
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetDropBehind;
+import org.apache.hadoop.fs.CanSetReadahead;
 import org.apache.hadoop.fs.FSInputStream;
 
+import com.ceph.fs.CephFileExtent;
 import com.ceph.fs.CephMount;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * <p>
  * An {@link FSInputStream} for a CephFileSystem and corresponding
  * Ceph instance.
  */
-public class CephInputStream extends FSInputStream {
+public class CephInputStream extends FSInputStream
+  implements ByteBufferReadable, CanSetReadahead, CanSetDropBehind {
   private static final Log LOG = LogFactory.getLog(CephInputStream.class);
-  private boolean closed;
+  /* largest single read staged through a pooled buffer */
+  private static final int STAGING_SIZE = 1 << 20;
+  private volatile boolean closed;
 
   private int fileHandle;
 
@@ -45,59 +66,366 @@ public class CephInputStream extends FSInputStream {
 
   private CephFsProto ceph;
 
+  /*
+   * The buffer holds file bytes [cephPos - bufValid, cephPos). Seeks are
+   * lazy, so fdPos, the libcephfs file offset, may lag cephPos until the
+   * next fill; -1 means it is unknown.
+   */
   private byte[] buffer;
   private int bufPos = 0;
   private int bufValid = 0;
   private long cephPos = 0;
+  private long fdPos = 0;
+
+  private int seekReadThroughMax;
+  private long bufferSeeks = 0;
+  private long realSeeks = 0;
+
+  private CephBufferPool pool;
+  private CephReadaheadPolicy readahead;
+  private CephPrefetcher prefetcher = null;
+  private ExecutorService executor;
+  private CephBlockCache.CachedFile cachedFile;
+  private CephStreamRegistry registry;
+  private CephStreamRegistry.Handle registration = null;
+  private int bufferSize;
+  private boolean unbuffered = false;
+  private boolean dropBehind = false;
+
+  private int vectoredMergeGap;
+  private int vectoredMergeMax;
+
+  private int stripedReadThreshold;
+  private int stripedReadPieceMin;
+  private int stripedReadDepth;
+
+  /*
+   * Reads using the file handle without the stream lock: positional reads
+   * and the vectored and striped read pieces running on the executor.
+   * close() stops new ones from starting and waits for these before
+   * closing the file handle.
+   */
+  private final Object backgroundLock = new Object();
+  private int backgroundReads = 0;
+  private boolean closing = false;
 
   /**
    * Create a new CephInputStream.
-   * @param conf The system configuration. Unused.
+   * @param conf The system configuration, used for readahead settings.
    * @param fh The filehandle provided by Ceph to reference.
    * @param flength The current length of the file. If the length changes
    * you will need to close and re-open it to access the new data.
    */
   public CephInputStream(Configuration conf, CephFsProto cephfs,
       int fh, long flength, int bufferSize) {
+    this(conf, cephfs, fh, flength, bufferSize, null, null, null, null);
+  }
+
+  /**
+   * Create a new CephInputStream.
+   * @param executor Runs background reads for prefetching (when enabled
+   * with ceph.prefetch.enabled), vectored reads and the pieces of large
+   * striped reads. May be null, which disables prefetching and striping
+   * and makes vectored reads synchronous.
+   * @param pool The buffer pool to take I/O buffers from and return them
+   * to on close. May be null, in which case buffers are not pooled.
+   * @param cachedFile This file's view of the block cache, consulted on
+   * every fill. May be null if block caching is disabled.
+   * @param registry Tracks the stream's file handle, closing it should the
+   * stream be garbage collected while open. May be null, in which case
+   * the caller must make sure the stream is closed.
+   */
+  CephInputStream(Configuration conf, CephFsProto cephfs,
+      int fh, long flength, int bufferSize, ExecutorService executor,
+      CephBufferPool pool, CephBlockCache.CachedFile cachedFile,
+      CephStreamRegistry registry) {
     // Whoever's calling the constructor is responsible for doing the actual ceph_open
     // call and providing the file handle.
     fileLength = flength;
     fileHandle = fh;
     closed = false;
     ceph = cephfs;
-    buffer = new byte[1<<21];
+    this.pool = pool != null ? pool : new CephBufferPool(0);
+    this.executor = executor;
+    this.cachedFile = cachedFile;
+    this.registry = registry;
+    if (cachedFile != null)
+      bufferSize = cachedFile.getBlockSize();
+    this.bufferSize = bufferSize;
+
+    int unit;
+    try {
+      unit = ceph.get_file_stripe_unit(fh);
+    } catch (IOException e) {
+      unit = 0;
+    }
+    /* the window never grows the read buffer past ceph.buffer.size.max */
+    int maxWindow = Math.min(
+        conf.getInt(CephConfigKeys.CEPH_READAHEAD_MAX_KEY,
+          CephConfigKeys.CEPH_READAHEAD_MAX_DEFAULT),
+        conf.getInt(CephConfigKeys.CEPH_BUFFER_SIZE_MAX_KEY,
+          CephConfigKeys.CEPH_BUFFER_SIZE_MAX_DEFAULT));
+    int minWindow = Math.min(maxWindow,
+        conf.getInt(CephConfigKeys.CEPH_READAHEAD_MIN_KEY,
+          CephConfigKeys.CEPH_READAHEAD_MIN_DEFAULT));
+    readahead = new CephReadaheadPolicy(minWindow, maxWindow, bufferSize,
+        unit);
+
+    seekReadThroughMax = conf.getInt(
+        CephConfigKeys.CEPH_SEEK_READTHROUGH_MAX_KEY,
+        CephConfigKeys.CEPH_SEEK_READTHROUGH_MAX_DEFAULT);
+    vectoredMergeGap = conf.getInt(
+        CephConfigKeys.CEPH_VECTORED_READ_MERGE_GAP_KEY,
+        CephConfigKeys.CEPH_VECTORED_READ_MERGE_GAP_DEFAULT);
+    vectoredMergeMax = conf.getInt(
+        CephConfigKeys.CEPH_VECTORED_READ_MERGE_MAX_KEY,
+        CephConfigKeys.CEPH_VECTORED_READ_MERGE_MAX_DEFAULT);
+    stripedReadThreshold = conf.getInt(
+        CephConfigKeys.CEPH_STRIPED_READ_THRESHOLD_KEY,
+        CephConfigKeys.CEPH_STRIPED_READ_THRESHOLD_DEFAULT);
+    stripedReadPieceMin = conf.getInt(
+        CephConfigKeys.CEPH_STRIPED_READ_PIECE_MIN_KEY,
+        CephConfigKeys.CEPH_STRIPED_READ_PIECE_MIN_DEFAULT);
+    stripedReadDepth = Math.max(1, conf.getInt(
+        CephConfigKeys.CEPH_STRIPED_READ_DEPTH_KEY,
+        CephConfigKeys.CEPH_STRIPED_READ_DEPTH_DEFAULT));
+
+    /*
+     * In prefetch mode the read buffer is always one of the prefetcher's
+     * chunk buffers. Chunks are a multiple of the stripe unit when the
+     * stripe unit is smaller than the configured chunk size. Streams backed
+     * by the block cache fill whole cache blocks instead.
+     */
+    boolean prefetch = conf.getBoolean(
+        CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY,
+        CephConfigKeys.CEPH_PREFETCH_ENABLED_DEFAULT);
+    if (prefetch && executor != null && cachedFile == null) {
+      int chunkSize = conf.getInt(
+          CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY,
+          CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_DEFAULT);
+      if (unit > 0 && unit < chunkSize)
+        chunkSize -= chunkSize % unit;
+      int depth = conf.getInt(
+          CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY,
+          CephConfigKeys.CEPH_PREFETCH_DEPTH_DEFAULT);
+      prefetcher = new CephPrefetcher(ceph, fh, flength, chunkSize, depth,
+          executor, this.pool);
+      buffer = new byte[0];
+    } else {
+      buffer = this.pool.acquire(bufferSize);
+    }
+    if (registry != null)
+      registration = registry.register(this, fh, true);
+
     LOG.debug(
         "CephInputStream constructor: initializing stream with fh " + fh
         + " and file length " + flength);
       
   }
 
-  /** Ceph likes things to be closed before it shuts down,
-   * so closing the IOStream stuff voluntarily in a finalizer is good
+  /*
+   * Refill the buffer from the current stream position. The readahead
+   * policy picks the fill size from the access history; wanted is how many
+   * bytes the caller is waiting for. If a lazy seek left the fd a short
+   * distance behind, the gap is read through rather than seeked over; it
+   * counts against the maximum window, so a fill never needs a buffer
+   * larger than that.
    */
-  protected void finalize() throws Throwable {
-    try {
-      if (!closed) {
-        close();
-      }
-    } finally {
-      super.finalize();
+  private synchronized boolean fillBuffer(int wanted) throws IOException {
+    if (unbuffered)
+      rebuffer();
+    if (prefetcher != null)
+      return fillFromPrefetcher();
+    if (cachedFile != null)
+      return fillFromCache();
+
+    int gap = 0;
+    if (fdPos >= 0 && cephPos > fdPos && cephPos - fdPos <= seekReadThroughMax)
+      gap = (int) (cephPos - fdPos);
+    else
+      syncFdPos();
+
+    int size = readahead.nextFillSize(cephPos, wanted);
+    if (fileLength > cephPos)
+      size = (int) Math.min(size, fileLength - cephPos);
+    size = Math.min(size, Math.max(readahead.getMaxWindow() - gap, 1)) + gap;
+    if (size > buffer.length) {
+      pool.release(buffer);
+      buffer = pool.acquire(size);
     }
-  }
 
-  private synchronized boolean fillBuffer() throws IOException {
-    bufValid = ceph.read(fileHandle, buffer, buffer.length, -1);
+    long start = cephPos - gap;
+    bufValid = ceph.read(fileHandle, buffer, size, -1);
     bufPos = 0;
     if (bufValid < 0) {
       int err = bufValid;
 
       bufValid = 0;
-      // attempt to reset to old position. If it fails, too bad.
-      ceph.lseek(fileHandle, cephPos, CephMount.SEEK_SET);
+      readahead.filled(cephPos, 0);
+      // the fd offset is unknown; the next fill seeks it back into place
+      fdPos = -1;
       throw new IOException("Failed to fill read buffer! Error code:" + err);
     }
-    cephPos += bufValid;
-    return (bufValid != 0);
+    if (gap > 0)
+      bufferSeeks++;
+    bufPos = Math.min(gap, bufValid);
+    fdPos = start + bufValid;
+    cephPos = fdPos;
+    readahead.filled(start + bufPos, bufValid - bufPos);
+    return (bufValid > bufPos);
+  }
+
+  /*
+   * The size of the read buffer, even while it is released.
+   */
+  private int bufferCapacity() {
+    return unbuffered ? bufferSize : buffer.length;
+  }
+
+  private void rebuffer() {
+    if (prefetcher == null)
+      buffer = pool.acquire(bufferSize);
+    unbuffered = false;
+    if (registry != null)
+      registry.setUnbuffered(registration, false);
+  }
+
+  /**
+   * Release the read buffer and any prefetched data, keeping the Ceph file
+   * handle and stream position. The next read that needs a buffer takes
+   * one from the pool again. Meant for readers that keep many streams open
+   * through long idle periods. Hadoop 2.4 has no CanUnbuffer interface, so
+   * callers reach this through {@link
+   * org.apache.hadoop.fs.FSDataInputStream#getWrappedStream()}.
+   */
+  public synchronized void unbuffer() {
+    if (closed || unbuffered)
+      return;
+    cephPos = cephPos - bufValid + bufPos;
+    bufValid = 0;
+    bufPos = 0;
+    if (prefetcher != null)
+      prefetcher.close();
+    else
+      pool.release(buffer);
+    buffer = new byte[0];
+    unbuffered = true;
+    if (registry != null)
+      registry.setUnbuffered(registration, true);
+  }
+
+  /**
+   * Limit how far reads run ahead of what the caller asks for: buffer
+   * fills stop at most readahead bytes past the bytes wanted, and
+   * prefetching keeps only enough chunks in flight to cover readahead
+   * bytes. Block cache fills still read whole blocks.
+   * @param readahead the limit in bytes, or null for the configured
+   * behaviour.
+   */
+  @Override
+  public synchronized void setReadahead(Long readahead) {
+    if (readahead != null && readahead < 0) {
+      throw new IllegalArgumentException(
+          "CephInputStream.setReadahead: negative readahead " + readahead);
+    }
+    long limit = readahead == null ? -1 : readahead;
+    this.readahead.setLimit(limit);
+    if (prefetcher != null)
+      prefetcher.setReadahead(limit);
+  }
+
+  /**
+   * Tell the stream its data will not be read again. Blocks it reads from
+   * Ceph are then not added to the block cache, so a large scan does not
+   * push out data other readers want. Cached blocks are still used.
+   * @param dropBehind true to enable, false or null to disable.
+   */
+  @Override
+  public synchronized void setDropBehind(Boolean dropBehind) {
+    this.dropBehind = Boolean.TRUE.equals(dropBehind);
+  }
+
+  /*
+   * Move the fd offset to the stream position if a lazy seek left it
+   * elsewhere.
+   */
+  private void syncFdPos() throws IOException {
+    if (fdPos == cephPos)
+      return;
+    long ret = ceph.lseek(fileHandle, cephPos, CephMount.SEEK_SET);
+    if (ret < 0) {
+      fdPos = -1;
+      throw new IOException(
+          "CephInputStream.seek: Ceph failed to seek to position " + cephPos
+          + " on fd " + fileHandle);
+    }
+    fdPos = ret;
+    realSeeks++;
+  }
+
+  /*
+   * Point the buffer at the prefetched chunk holding the current position.
+   * Reads are positional, so the fd offset is never used in this mode.
+   */
+  private synchronized boolean fillFromPrefetcher() throws IOException {
+    /*
+     * take() may give the current chunk's buffer back to the pool, so the
+     * window over it goes first, in case the next chunk fails to arrive.
+     */
+    cephPos = cephPos - bufValid + bufPos;
+    bufValid = 0;
+    bufPos = 0;
+    CephPrefetcher.Chunk chunk = prefetcher.take(cephPos);
+    if (chunk == null)
+      return false;
+    buffer = chunk.buf;
+    bufPos = (int) (cephPos - chunk.offset);
+    bufValid = chunk.length;
+    cephPos = chunk.offset + chunk.length;
+    return true;
+  }
+
+  /*
+   * Fill the buffer with the cache block holding the current position,
+   * reading it from Ceph and offering it to the cache on a miss. Block
+   * reads are positional, so the fd offset is left alone.
+   */
+  private synchronized boolean fillFromCache() throws IOException {
+    if (cephPos >= fileLength) {
+      bufValid = 0;
+      bufPos = 0;
+      return false;
+    }
+    int blockSize = cachedFile.getBlockSize();
+    long block = cephPos / blockSize;
+    long start = block * blockSize;
+
+    int length = cachedFile.get(block, buffer);
+    if (length < 0) {
+      int size = (int) Math.min(blockSize, fileLength - start);
+      length = 0;
+      while (length < size) {
+        int ret = ceph.read(fileHandle, buffer, length, size - length,
+            start + length);
+        if (ret < 0) {
+          bufValid = 0;
+          bufPos = 0;
+          throw new IOException("Failed to fill read buffer! Error code:"
+              + ret);
+        }
+        if (ret == 0)
+          break;
+        length += ret;
+      }
+      readahead.filled(start, length);
+      if (length == size && !dropBehind)
+        cachedFile.put(block, buffer, length);
+    }
+
+    bufValid = length;
+    bufPos = (int) Math.min(cephPos - start, length);
+    cephPos = start + length;
+    return (bufValid > bufPos);
   }
 
   /*
@@ -107,6 +435,47 @@ public class CephInputStream extends FSInputStream {
     return cephPos - bufValid + bufPos;
   }
 
+  /**
+   * Get the number of bytes read from Ceph into the read buffer.
+   */
+  public synchronized long getBytesReadAhead() {
+    long bytes = readahead.getBytesReadAhead();
+    if (prefetcher != null)
+      bytes += prefetcher.getBytesFetched();
+    return bytes;
+  }
+
+  /**
+   * Get the number of bytes handed from the read buffer to the caller.
+   * The difference with {@link #getBytesReadAhead()} is wasted readahead
+   * plus whatever is still buffered.
+   */
+  public synchronized long getBytesConsumed() {
+    return readahead.getBytesConsumed();
+  }
+
+  /**
+   * Get the number of seeks served without moving the Ceph file offset,
+   * either inside the buffered data or by reading through a short gap.
+   */
+  public synchronized long getBufferSeeks() {
+    return bufferSeeks;
+  }
+
+  /**
+   * Get the number of seeks that needed an lseek on the Ceph file handle.
+   */
+  public synchronized long getRealSeeks() {
+    return realSeeks;
+  }
+
+  /**
+   * Get the access pattern detected by the readahead policy.
+   */
+  synchronized CephReadaheadPolicy.Pattern getReadPattern() {
+    return readahead.getPattern();
+  }
+
   /**
    * Find the number of bytes remaining in the file.
    */
@@ -117,6 +486,12 @@ public class CephInputStream extends FSInputStream {
     return (int) (fileLength - getPos());
   }
 
+  /**
+   * Seek to a new position. A target inside the buffered data only moves
+   * the buffer position. Otherwise the buffer is dropped and the Ceph file
+   * offset is only moved when the next fill needs it; a fill a short
+   * distance ahead of the old offset reads through the gap instead.
+   */
   public synchronized void seek(long targetPos) throws IOException {
     LOG.trace(
         "CephInputStream.seek: Seeking to position " + targetPos + " on fd "
@@ -126,15 +501,24 @@ public class CephInputStream extends FSInputStream {
           "CephInputStream.seek: failed seek to position " + targetPos
           + " on fd " + fileHandle + ": Cannot seek after EOF " + fileLength);
     }
-    long oldPos = cephPos;
+    if (targetPos < 0) {
+      throw new EOFException(
+          "CephInputStream.seek: failed seek to negative position "
+          + targetPos + " on fd " + fileHandle);
+    }
+
+    long bufStart = cephPos - bufValid;
+    if (targetPos >= bufStart && targetPos <= cephPos) {
+      bufPos = (int) (targetPos - bufStart);
+      bufferSeeks++;
+      return;
+    }
 
-    cephPos = ceph.lseek(fileHandle, targetPos, CephMount.SEEK_SET);
+    if (prefetcher != null)
+      prefetcher.seek(targetPos);
+    cephPos = targetPos;
     bufValid = 0;
     bufPos = 0;
-    if (cephPos < 0) {
-      cephPos = oldPos;
-      throw new IOException("Ceph failed to seek to new position!");
-    }
   }
 
   /**
@@ -174,6 +558,9 @@ public class CephInputStream extends FSInputStream {
 
   /**
    * Read a specified number of bytes from the file into a byte[].
+   * Buffered data is handed out first. Whatever remains of a read at least
+   * as large as the read buffer then goes from Ceph straight into buf, in
+   * one call or, above ceph.striped.read.threshold, in parallel pieces.
    * @param buf the byte array to read into.
    * @param off the offset to start at in the file
    * @param len the number of bytes to read
@@ -228,7 +615,35 @@ public class CephInputStream extends FSInputStream {
       len -= read;
       off += read;
       totalRead += read;
-    } while (len > 0 && fillBuffer());
+      readahead.consumed(read);
+
+      if (len > 0 && len >= bufferCapacity() && prefetcher == null &&
+          cachedFile == null) {
+        /*
+         * Too large to stage through the buffer. It is drained, so the
+         * stream position is cephPos. The data lands in buf without a
+         * copy only when off is 0; see cephRead.
+         */
+        if (len > buf.length - off) {
+          throw new IOException(
+              "CephInputStream.read: Indices out of bounds:" + "read length is "
+              + len + ", buffer offset is " + off + ", and buffer size is "
+              + buf.length);
+        }
+        int size = (int) Math.min(len, fileLength - cephPos);
+        if (size <= 0)
+          break;
+        if (useStripedRead(size))
+          read = readStriped(cephPos, buf, off, size);
+        else
+          read = readDirect(buf, off, size);
+        cephPos += read;
+        bufValid = 0;
+        bufPos = 0;
+        totalRead += read;
+        break;
+      }
+    } while (len > 0 && fillBuffer(len));
 
     LOG.trace(
         "CephInputStream.read: Reading " + initialLen + " bytes from fd "
@@ -236,16 +651,545 @@ public class CephInputStream extends FSInputStream {
     return totalRead;
   }
 
+  /*
+   * Read up to len bytes at the stream position into buf through the fd,
+   * bypassing the read buffer. Stops early only at end of file.
+   */
+  private int readDirect(byte[] buf, int off, int len) throws IOException {
+    syncFdPos();
+    int done = 0;
+    while (done < len) {
+      int ret = cephRead(buf, off + done, len - done, -1);
+      if (ret < 0) {
+        fdPos = -1;
+        throw new IOException(
+            "CephInputStream.read: failed to read " + (len - done)
+            + " bytes from fd " + fileHandle + ": ret=" + ret);
+      }
+      if (ret == 0)
+        break;
+      done += ret;
+      fdPos += ret;
+    }
+    return done;
+  }
+
+  /**
+   * Read into a ByteBuffer. Buffered data is drained first; a request at
+   * least as large as the read buffer is then handed to Ceph directly so
+   * the data is copied into the caller's buffer at most once.
+   * @param buf the buffer to fill from its position up to its limit.
+   * @return the number of bytes read, or -1 at end of file.
+   * @throws IOException on a Ceph error.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    LOG.trace(
+        "CephInputStream.read: Reading " + buf.remaining()
+        + " bytes into ByteBuffer from fd " + fileHandle);
+
+    if (closed) {
+      throw new IOException(
+          "CephInputStream.read: cannot read " + buf.remaining()
+          + " bytes from fd " + fileHandle + ": stream closed");
+    }
+    if (!buf.hasRemaining())
+      return 0;
+    if (getPos() >= fileLength)
+      return -1;
+
+    int buffered = Math.min(buf.remaining(), bufValid - bufPos);
+    if (buffered > 0) {
+      buf.put(buffer, bufPos, buffered);
+      bufPos += buffered;
+      readahead.consumed(buffered);
+      return buffered;
+    }
+
+    if (prefetcher != null || cachedFile != null ||
+        buf.remaining() < bufferCapacity()) {
+      if (!fillBuffer(buf.remaining()))
+        return -1;
+      int read = Math.min(buf.remaining(), bufValid - bufPos);
+      buf.put(buffer, bufPos, read);
+      bufPos += read;
+      readahead.consumed(read);
+      return read;
+    }
+
+    /*
+     * The buffer is drained, so the stream position is cephPos. A heap
+     * buffer is read into like an array; see the byte[] bypass.
+     */
+    int size = (int) Math.min(buf.remaining(), fileLength - cephPos);
+    int read;
+    if (buf.hasArray()) {
+      int off = buf.arrayOffset() + buf.position();
+      if (useStripedRead(size))
+        read = readStriped(cephPos, buf.array(), off, size);
+      else
+        read = readDirect(buf.array(), off, size);
+      buf.position(buf.position() + read);
+    } else {
+      read = readDirect(buf, size);
+    }
+    if (read == 0)
+      return -1;
+    cephPos += read;
+    bufValid = 0;
+    bufPos = 0;
+    return read;
+  }
+
+  /*
+   * Read up to len bytes at the stream position into a buffer without an
+   * array, advancing its position. libcephfs-jni only reads into arrays,
+   * so the data is read into a pooled buffer, at most STAGING_SIZE bytes
+   * at a time, and copied into buf. Stops early only at end of file.
+   */
+  private int readDirect(ByteBuffer buf, int len) throws IOException {
+    syncFdPos();
+    byte[] staging = pool.acquire(Math.min(len, STAGING_SIZE));
+    int done = 0;
+    try {
+      while (done < len) {
+        int size = Math.min(len - done, STAGING_SIZE);
+        int ret = ceph.read(fileHandle, staging, size, -1);
+        if (ret < 0) {
+          fdPos = -1;
+          throw new IOException(
+              "CephInputStream.read: failed to read " + (len - done)
+              + " bytes from fd " + fileHandle + ": ret=" + ret);
+        }
+        if (ret == 0)
+          break;
+        buf.put(staging, 0, ret);
+        done += ret;
+        fdPos += ret;
+      }
+    } finally {
+      pool.release(staging);
+    }
+    return done;
+  }
+
+  /**
+   * Read up to len bytes starting at the given file position. The stream
+   * position and read buffer are left untouched, and no lock is taken, so
+   * concurrent positional readers of a shared stream do not serialize.
+   * @param position the file offset to read from.
+   * @param buf the byte array to read into.
+   * @param off the offset into buf to start writing at.
+   * @param len the maximum number of bytes to read.
+   * @return the number of bytes read, or -1 at end of file.
+   * @throws IOException on bad input or a Ceph error.
+   */
+  @Override
+  public int read(long position, byte buf[], int off, int len)
+    throws IOException {
+    LOG.trace(
+        "CephInputStream.read: Reading " + len + " bytes at position "
+        + position + " from fd " + fileHandle);
+
+    if (closed) {
+      throw new IOException(
+          "CephInputStream.read: cannot read " + len + " bytes from fd "
+          + fileHandle + ": stream closed");
+    }
+    if (position < 0) {
+      throw new EOFException(
+          "CephInputStream.read: cannot read at negative position " + position);
+    }
+    if (off < 0 || len < 0 || len > buf.length - off) {
+      throw new IndexOutOfBoundsException(
+          "CephInputStream.read: Indices out of bounds: read length is "
+          + len + ", buffer offset is " + off + ", and buffer size is "
+          + buf.length);
+    }
+    if (len == 0)
+      return 0;
+    if (position >= fileLength)
+      return -1;
+
+    /* a concurrent close() must not close the fd while we use it */
+    if (!beginBackgroundRead()) {
+      throw new IOException(
+          "CephInputStream.read: cannot read " + len + " bytes from fd "
+          + fileHandle + ": stream closed");
+    }
+    int ret;
+    try {
+      int size = (int) Math.min(len, fileLength - position);
+      if (useStripedRead(size)) {
+        ret = readStriped(position, buf, off, size);
+        return ret > 0 ? ret : -1;
+      }
+      ret = cephRead(buf, off, size, position);
+    } finally {
+      endBackgroundRead();
+    }
+    if (ret < 0) {
+      throw new IOException(
+          "CephInputStream.read: failed to read " + len + " bytes at position "
+          + position + " from fd " + fileHandle + ": ret=" + ret);
+    }
+
+    /* the file shrunk underneath us */
+    if (ret == 0)
+      return -1;
+
+    return ret;
+  }
+
+  /**
+   * Read exactly len bytes starting at the given file position. Like
+   * {@link #read(long, byte[], int, int)} this does not touch the stream
+   * position or take the stream lock.
+   * @throws EOFException if the end of file is reached first.
+   */
+  @Override
+  public void readFully(long position, byte buf[], int off, int len)
+    throws IOException {
+    while (len > 0) {
+      int ret = read(position, buf, off, len);
+      if (ret < 0) {
+        throw new EOFException(
+            "CephInputStream.readFully: end of file reached at position "
+            + position + " with " + len + " bytes remaining on fd "
+            + fileHandle);
+      }
+      position += ret;
+      off += ret;
+      len -= ret;
+    }
+  }
+
+  @Override
+  public void readFully(long position, byte buf[]) throws IOException {
+    readFully(position, buf, 0, buf.length);
+  }
+
+  /*
+   * Large reads are split when there is an executor to run the pieces on.
+   * Prefetching and cached streams read in their own units.
+   */
+  private boolean useStripedRead(int len) {
+    return stripedReadThreshold > 0 && len >= stripedReadThreshold &&
+      executor != null && prefetcher == null && cachedFile == null;
+  }
+
+  /*
+   * Read len bytes at position by splitting the range at RADOS object
+   * boundaries, as reported by get_file_extent, and reading up to
+   * ceph.striped.read.depth pieces concurrently with positional reads into
+   * buf. The first piece is read in place when off is 0; the others are
+   * staged, see cephRead. Objects smaller than ceph.striped.read.piece.min
+   * are grouped into one piece. Every piece that was started is waited for, even on error,
+   * since it writes into the caller's array.
+   * @return the number of contiguous bytes read from position, which is
+   * less than len only if the file shrunk.
+   */
+  private int readStriped(long position, final byte[] buf, int off, int len)
+    throws IOException {
+    List<long[]> pieces = new ArrayList<long[]>();
+    long end = position + len;
+    long start = position;
+    long pos = position;
+    while (pos < end) {
+      CephFileExtent extent = ceph.get_file_extent(fileHandle, pos);
+      long next = extent.getOffset() + extent.getLength();
+      pos = next > pos ? Math.min(next, end) : end;
+      if (pos - start >= stripedReadPieceMin || pos == end) {
+        pieces.add(new long[] { start, pos - start });
+        start = pos;
+      }
+    }
+    LOG.trace("CephInputStream.readStriped: reading " + len + " bytes at "
+        + position + " from fd " + fileHandle + " in " + pieces.size()
+        + " pieces");
+
+    List<FutureTask<Integer>> tasks = new ArrayList<FutureTask<Integer>>();
+    IOException error = null;
+    boolean complete = true;
+    int total = 0;
+    for (int i = 0; i < pieces.size(); i++) {
+      while (error == null && complete && tasks.size() < pieces.size() &&
+          tasks.size() - i < stripedReadDepth) {
+        long[] piece = pieces.get(tasks.size());
+        tasks.add(submitPiece(buf, off + (int) (piece[0] - position),
+              (int) piece[1], piece[0]));
+      }
+      if (i >= tasks.size())
+        break;
+
+      int ret;
+      try {
+        ret = Uninterruptibles.getUninterruptibly(tasks.get(i));
+      } catch (CancellationException e) {
+        /* dropped by the file system's executor on close */
+        if (error == null) {
+          error = new IOException("Striped read of fd " + fileHandle
+              + " at offset " + pieces.get(i)[0]
+              + " cancelled: file system closed");
+        }
+        continue;
+      } catch (ExecutionException e) {
+        if (error == null) {
+          Throwable cause = e.getCause();
+          error = cause instanceof IOException ? (IOException) cause
+            : new IOException("Striped read of fd " + fileHandle
+                + " at offset " + pieces.get(i)[0] + " failed", cause);
+        }
+        continue;
+      }
+      if (error == null && complete) {
+        total += ret;
+        complete = ret == pieces.get(i)[1];
+      }
+    }
+    if (error != null)
+      throw error;
+    return total;
+  }
+
+  private FutureTask<Integer> submitPiece(final byte[] buf, final int off,
+      final int len, final long position) {
+    FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        if (!beginBackgroundRead()) {
+          throw new IOException("CephInputStream.readStriped: fd "
+              + fileHandle + " closed before reading at " + position);
+        }
+        try {
+          return readAt(position, buf, off, len);
+        } finally {
+          endBackgroundRead();
+        }
+      }
+    });
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+    return task;
+  }
+
+  /*
+   * Positional read of up to len bytes with one Ceph call after another,
+   * stopping early only at end of file. Used by tasks already running on
+   * the executor, which must not wait on it for more work.
+   */
+  private int readAt(long position, byte[] buf, int off, int len)
+    throws IOException {
+    int done = 0;
+    while (done < len) {
+      int ret = cephRead(buf, off + done, len - done, position + done);
+      if (ret < 0) {
+        throw new IOException(
+            "CephInputStream.read: failed to read " + (len - done)
+            + " bytes at position " + (position + done) + " from fd "
+            + fileHandle + ": ret=" + ret);
+      }
+      if (ret == 0)
+        break;
+      done += ret;
+    }
+    return done;
+  }
+
+  /*
+   * One Ceph read of up to len bytes into buf at off, from position or,
+   * if position is -1, from the fd offset. libcephfs-jni always fills an
+   * array from index zero, so only a read at off 0 lands in place; any
+   * other is read into a pooled buffer, at most STAGING_SIZE bytes at a
+   * time, and copied once, rather than through the temporary array
+   * CephTalker would allocate for it.
+   */
+  private int cephRead(byte[] buf, int off, int len, long position)
+    throws IOException {
+    if (off == 0)
+      return ceph.read(fileHandle, buf, len, position);
+
+    int size = Math.min(len, STAGING_SIZE);
+    byte[] staging = pool.acquire(size);
+    try {
+      int ret = ceph.read(fileHandle, staging, size, position);
+      if (ret > 0)
+        System.arraycopy(staging, 0, buf, off, ret);
+      return ret;
+    } finally {
+      pool.release(staging);
+    }
+  }
+
+  /**
+   * Read a set of ranges in parallel. Ranges are sorted and those closer
+   * than ceph.vectored.read.merge.gap bytes are merged, up to
+   * ceph.vectored.read.merge.max bytes per merged read. Each merged read
+   * is issued as a positional read on the stream's executor, and each
+   * range's future completes with its own slice of the data as soon as
+   * the read covering it finishes. Like positional reads this neither
+   * moves the stream position nor takes the stream lock.
+   * @param ranges the ranges to read; their futures are replaced.
+   * @throws IOException if the stream is closed.
+   */
+  public void readVectored(List<CephFileRange> ranges) throws IOException {
+    if (closed) {
+      throw new IOException(
+          "CephInputStream.readVectored: cannot read " + ranges.size()
+          + " ranges from fd " + fileHandle + ": stream closed");
+    }
+
+    List<CephFileRange> sorted = new ArrayList<CephFileRange>();
+    for (CephFileRange range : ranges) {
+      range.reset();
+      if (range.getOffset() < 0 || range.getLength() < 0) {
+        range.fail(new IllegalArgumentException(
+              "Invalid vectored read " + range));
+      } else if (range.getOffset() + range.getLength() > fileLength) {
+        range.fail(new EOFException(
+              "Vectored read " + range + " is past EOF " + fileLength
+              + " on fd " + fileHandle));
+      } else {
+        sorted.add(range);
+      }
+    }
+    Collections.sort(sorted, new Comparator<CephFileRange>() {
+      public int compare(CephFileRange a, CephFileRange b) {
+        return Long.valueOf(a.getOffset()).compareTo(b.getOffset());
+      }
+    });
+
+    int i = 0;
+    while (i < sorted.size()) {
+      final List<CephFileRange> merged = new ArrayList<CephFileRange>();
+      final long start = sorted.get(i).getOffset();
+      long end = start + sorted.get(i).getLength();
+      merged.add(sorted.get(i++));
+      while (i < sorted.size()) {
+        CephFileRange next = sorted.get(i);
+        long nextEnd = Math.max(end, next.getOffset() + next.getLength());
+        if (next.getOffset() - end > vectoredMergeGap ||
+            nextEnd - start > vectoredMergeMax)
+          break;
+        end = nextEnd;
+        merged.add(next);
+        i++;
+      }
+
+      final int length = (int) (end - start);
+      Runnable task = new Runnable() {
+        public void run() {
+          readMerged(start, length, merged);
+        }
+      };
+      try {
+        if (executor != null) {
+          executor.execute(task);
+          continue;
+        }
+      } catch (RejectedExecutionException e) {
+        LOG.debug("CephInputStream.readVectored: executor rejected read, "
+            + "reading inline");
+      }
+      task.run();
+    }
+  }
+
+  /*
+   * Read one merged range and complete the futures of the ranges in it.
+   */
+  private void readMerged(long start, int length, List<CephFileRange> ranges) {
+    byte[] data = new byte[length];
+    try {
+      if (!beginBackgroundRead()) {
+        throw new IOException("CephInputStream.readVectored: fd "
+            + fileHandle + " closed before reading " + ranges);
+      }
+      try {
+        if (readAt(start, data, 0, length) < length) {
+          throw new EOFException("CephInputStream.readVectored: end of file "
+              + "reached reading " + ranges + " from fd " + fileHandle);
+        }
+      } finally {
+        endBackgroundRead();
+      }
+    } catch (Throwable t) {
+      for (CephFileRange range : ranges)
+        range.fail(t);
+      return;
+    }
+    for (CephFileRange range : ranges) {
+      ByteBuffer slice = ByteBuffer.wrap(data,
+          (int) (range.getOffset() - start), range.getLength()).slice();
+      range.complete(slice);
+    }
+  }
+
+  /*
+   * Register a read about to use the file handle without the stream lock.
+   * Returns false once the stream is closing, in which case the read must
+   * not be issued.
+   */
+  private boolean beginBackgroundRead() {
+    synchronized (backgroundLock) {
+      if (closing)
+        return false;
+      backgroundReads++;
+      return true;
+    }
+  }
+
+  private void endBackgroundRead() {
+    synchronized (backgroundLock) {
+      if (--backgroundReads == 0)
+        backgroundLock.notifyAll();
+    }
+  }
+
+  /*
+   * Stop unlocked reads from starting and wait for those running. Like
+   * close itself this does not give up when interrupted.
+   */
+  private void awaitBackgroundReads() {
+    boolean interrupted = false;
+    synchronized (backgroundLock) {
+      closing = true;
+      while (backgroundReads > 0) {
+        try {
+          backgroundLock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
   /**
    * Close the CephInputStream and release the associated filehandle.
+   * Positional reads and reads still running in the background are waited
+   * for first.
    */
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
     LOG.trace("CephOutputStream.close:enter");
     if (!closed) {
+      awaitBackgroundReads();
+      if (prefetcher != null)
+        prefetcher.close();
+      else
+        pool.release(buffer);
+      buffer = null;
+      bufPos = 0;
+      bufValid = 0;
       ceph.close(fileHandle);
 
       closed = true;
+      if (registry != null)
+        registry.unregister(registration);
       LOG.trace("CephOutputStream.close:exit");
     }
   }
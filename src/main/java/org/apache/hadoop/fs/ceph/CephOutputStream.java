@@ -24,10 +24,16 @@ package org.apache.hadoop.fs.ceph;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Syncable;
 import org.apache.hadoop.util.Progressable;
 
 import com.ceph.fs.CephMount;
@@ -37,13 +43,43 @@ import com.ceph.fs.CephMount;
  * An {@link OutputStream} for a CephFileSystem and corresponding
  * Ceph instance.
  *
- * TODO:
- *  - When libcephfs-jni supports ByteBuffer interface we can get rid of the
- *  use of the buffer here to reduce memory copies and just use buffers in
- *  libcephfs. Currently it might be useful to reduce JNI crossings, but not
- *  much more.
+ * Data can also be written from a ByteBuffer through the
+ * {@link WritableByteChannel} interface, reached with
+ * FSDataOutputStream.getWrappedStream(). Without write-behind, whole
+ * buffers' worth of it go to libcephfs without being copied into the
+ * stream buffer.
+ *
+ * With ceph.write.behind.enabled, full buffers are handed to background
+ * writers on the file system's I/O threads and the caller carries on
+ * filling a fresh buffer. The stream tracks its own file offset and
+ * every buffer is written at an explicit offset. Up to
+ * ceph.write.behind.parallelism buffers are written at once; with a
+ * parallelism of 1 they are written strictly in order. The bytes queued
+ * or being written are bounded by ceph.write.behind.inflight.max, and
+ * hflush, hsync and close wait for all of them. A failed background
+ * write is reported by the next write, flush or close, and every call
+ * after it.
+ *
+ * Buffers follow the file layout. A buffer smaller than an object ends
+ * on a multiple of its size when that divides the object size, and on an
+ * object boundary otherwise, so that no write spans two objects. A
+ * larger buffer ends on the last object boundary it covers. After an
+ * append at an arbitrary offset the first buffer is cut short to get
+ * back into alignment.
+ *
+ * hflush() moves buffered data into libcephfs, from where it is visible to
+ * other clients, and hsync() additionally waits for the cluster to make it
+ * durable. A plain flush() does what ceph.output.flush.policy says: none,
+ * hflush or hsync, the default. close() always syncs; in async close mode
+ * it returns once the data is in libcephfs and leaves the sync and the
+ * closing of the file handle to the file system's close completer.
+ *
+ * With ceph.checksum.enabled the CRC32C of everything written is kept up
+ * to date as data enters the stream and stored with the file on close,
+ * so that getFileChecksum does not have to read the file back.
  */
-public class CephOutputStream extends OutputStream {
+public class CephOutputStream extends OutputStream
+    implements Syncable, WritableByteChannel {
   private static final Log LOG = LogFactory.getLog(CephOutputStream.class);
   private boolean closed;
 
@@ -51,8 +87,55 @@ public class CephOutputStream extends OutputStream {
 
   private int fileHandle;
 
+  private CephBufferPool pool;
+  private CephStreamRegistry registry;
+  private CephStreamRegistry.Handle registration = null;
+  private CephSyncCoordinator syncCoordinator;
+  private CephCloseCompleter closeCompleter;
+  private CephChecksumStore.Tracker checksum;
   private byte[] buffer;
   private int bufUsed = 0;
+  /* data before this index was written by a write that then failed */
+  private int bufStart = 0;
+  private final int bufferSize;
+
+  enum FlushPolicy { NONE, HFLUSH, HSYNC }
+  private final FlushPolicy flushPolicy;
+
+  /* A full buffer waiting for, or being written by, the background writer. */
+  private static final class Chunk {
+    final byte[] buf;
+    final int length;
+    final long offset;
+
+    Chunk(byte[] buf, int length, long offset) {
+      this.buf = buf;
+      this.length = length;
+      this.offset = offset;
+    }
+  }
+
+  /* the file's object size, or 0 to ignore the layout */
+  private final long objectSize;
+  /* file offset of buffer[bufStart], or -1 until it is needed */
+  private long writeOffset = -1;
+
+  /* write-behind state, guarded by this */
+  private final boolean writeBehind;
+  private final ExecutorService executor;
+  private final long maxInflightBytes;
+  private final int parallelism;
+  private final ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+  /* bytes queued or being written */
+  private long inflightBytes = 0;
+  private int writers = 0;
+  private IOException writeFailure = null;
+
+  private final Runnable drainer = new Runnable() {
+    public void run() {
+      drain();
+    }
+  };
 
   /**
    * Construct the CephOutputStream.
@@ -61,23 +144,69 @@ public class CephOutputStream extends OutputStream {
    */
   public CephOutputStream(Configuration conf, CephFsProto cephfs,
       int fh, int bufferSize) {
-    ceph = cephfs;
-    fileHandle = fh;
-    closed = false;
-    buffer = new byte[1<<21];
+    this(conf, cephfs, fh, bufferSize, null, null, null, null, null, null);
   }
 
   /**
-   * Close the Ceph file handle if close() wasn't explicitly called.
+   * Construct the CephOutputStream.
+   * @param executor Runs background writes when write-behind is enabled
+   * with ceph.write.behind.enabled. May be null, which makes all writes
+   * synchronous.
+   * @param pool The buffer pool to take the write buffer from and return it
+   * to on close. May be null, in which case the buffer is not pooled.
+   * @param registry Tracks the stream's file handle, closing it should the
+   * stream be garbage collected while open. May be null, in which case
+   * the caller must make sure the stream is closed.
+   * @param syncCoordinator Batches this stream's hsync calls with those of
+   * other streams. May be null, in which case each hsync is an fsync.
+   * @param closeCompleter Syncs and closes the file handle in the
+   * background once close() has moved the data into libcephfs. May be
+   * null, in which case close() does it all.
+   * @param checksum Computes the checksum of the data written, and stores
+   * it when the stream closes. May be null.
    */
-  protected void finalize() throws Throwable {
+  CephOutputStream(Configuration conf, CephFsProto cephfs,
+      int fh, int bufferSize, ExecutorService executor, CephBufferPool pool,
+      CephStreamRegistry registry, CephSyncCoordinator syncCoordinator,
+      CephCloseCompleter closeCompleter, CephChecksumStore.Tracker checksum) {
+    ceph = cephfs;
+    fileHandle = fh;
+    closed = false;
+    this.pool = pool != null ? pool : new CephBufferPool(0);
+    this.registry = registry;
+    this.syncCoordinator = syncCoordinator;
+    this.closeCompleter = closeCompleter;
+    this.checksum = checksum;
+    this.bufferSize = bufferSize;
+    this.executor = executor;
+    writeBehind = executor != null && conf.getBoolean(
+        CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY,
+        CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_DEFAULT);
+    maxInflightBytes = conf.getLong(
+        CephConfigKeys.CEPH_WRITE_BEHIND_INFLIGHT_MAX_KEY,
+        CephConfigKeys.CEPH_WRITE_BEHIND_INFLIGHT_MAX_DEFAULT);
+    parallelism = Math.max(1, conf.getInt(
+        CephConfigKeys.CEPH_WRITE_BEHIND_PARALLELISM_KEY,
+        CephConfigKeys.CEPH_WRITE_BEHIND_PARALLELISM_DEFAULT));
+    /* files are laid out with a stripe count of 1: a stripe unit per object */
+    long unit = 0;
     try {
-      if (!closed) {
-        close();
-      }
-    } finally {
-      super.finalize();
+      unit = ceph.get_file_stripe_unit(fh);
+    } catch (IOException e) {
+      LOG.debug("No object size for fd " + fh + ": " + e);
     }
+    objectSize = Math.max(0, unit);
+    String policy = conf.get(CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_KEY,
+        CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_DEFAULT);
+    try {
+      flushPolicy = FlushPolicy.valueOf(policy.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid "
+          + CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_KEY + ": " + policy);
+    }
+    buffer = this.pool.acquire(bufferSize);
+    if (registry != null)
+      registration = registry.register(this, fh, false);
   }
 
   /**
@@ -94,6 +223,8 @@ public class CephOutputStream extends OutputStream {
    */
   public synchronized long getPos() throws IOException {
     checkOpen();
+    if (writeBehind)
+      return startOffset() + bufUsed - bufStart;
     return ceph.lseek(fileHandle, 0, CephMount.SEEK_CUR);
   }
 
@@ -107,18 +238,85 @@ public class CephOutputStream extends OutputStream {
   @Override
   public synchronized void write(byte buf[], int off, int len) throws IOException {
     checkOpen();
+    checkWriteFailure();
 
     while (len > 0) {
-      int remaining = Math.min(len, buffer.length - bufUsed);
+      int room = bufferRoom();
+      int remaining = Math.min(len, room);
       System.arraycopy(buf, off, buffer, bufUsed, remaining);
+      if (checksum != null)
+        checksum.update(buf, off, remaining);
 
       bufUsed += remaining;
       off += remaining;
       len -= remaining;
 
-      if (buffer.length == bufUsed)
-        flushBuffer();
+      if (remaining == room) {
+        if (writeBehind)
+          handOff();
+        else
+          flushBuffer();
+      }
+    }
+  }
+
+  /**
+   * Write the remaining bytes of src, advancing its position.
+   * @return the number of bytes written, which is all of them.
+   */
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    checkOpen();
+    checkWriteFailure();
+    int total = src.remaining();
+
+    while (src.hasRemaining()) {
+      int room = bufferRoom();
+      if (!writeBehind && bufUsed == 0 && src.remaining() >= buffer.length) {
+        /* a buffer's worth: write it from src */
+        ByteBuffer piece = src.duplicate();
+        piece.limit(piece.position() + room);
+        if (checksum != null)
+          checksum.update(piece);
+        writeSequential(piece);
+        src.position(piece.position());
+        continue;
+      }
+
+      int n = Math.min(room, src.remaining());
+      src.get(buffer, bufUsed, n);
+      if (checksum != null)
+        checksum.update(buffer, bufUsed, n);
+      bufUsed += n;
+      if (n == room) {
+        if (writeBehind)
+          handOff();
+        else
+          flushBuffer();
+      }
     }
+    return total;
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return !closed;
+  }
+
+  /*
+   * Bytes that fit in the buffer before it must be written out. The
+   * buffer ends on the last alignment boundary it covers, if any.
+   */
+  private int bufferRoom() throws IOException {
+    int room = buffer.length - bufUsed;
+    if (objectSize > 0) {
+      long unit = objectSize % buffer.length == 0 ? buffer.length : objectSize;
+      long start = startOffset() - bufStart;
+      long end = (start + buffer.length) / unit * unit;
+      if (end > start)
+        room = (int)(end - start) - bufUsed;
+    }
+    return room;
   }
 
   /*
@@ -128,46 +326,259 @@ public class CephOutputStream extends OutputStream {
     if (bufUsed == 0)
       return;
 
-    while (bufUsed > 0) {
-      int ret = ceph.write(fileHandle, buffer, bufUsed, -1);
-      if (ret < 0)
+    /*
+     * A partial write advances the view instead of moving the data, and
+     * what a failed write leaves stays in place for the next flush.
+     */
+    ByteBuffer view = ByteBuffer.wrap(buffer, bufStart, bufUsed - bufStart);
+    try {
+      writeSequential(view);
+    } finally {
+      bufStart = view.position();
+      if (bufStart == bufUsed) {
+        bufStart = 0;
+        bufUsed = 0;
+      }
+    }
+  }
+
+  /*
+   * Write all of view at the file position.
+   */
+  private void writeSequential(ByteBuffer view) throws IOException {
+    while (view.hasRemaining()) {
+      int ret = ceph.write(fileHandle, view, -1, pool);
+      if (ret <= 0)
         throw new IOException("ceph.write: ret=" + ret);
+      if (writeOffset >= 0)
+        writeOffset += ret;
+    }
+  }
 
-      if (ret == bufUsed) {
-        bufUsed = 0;
-        return;
+  /*
+   * The file offset of the unwritten data in the buffer. Streams are opened either
+   * truncated or for append, so they start at the end of the file. With
+   * O_APPEND the fd is only moved to the end by a write, hence SEEK_END.
+   */
+  private synchronized long startOffset() throws IOException {
+    if (writeOffset < 0)
+      writeOffset = ceph.lseek(fileHandle, 0, CephMount.SEEK_END);
+    return writeOffset;
+  }
+
+  /*
+   * Queue the buffer for the background writer and continue in a fresh
+   * one, first waiting for enough queued bytes to be written. At least one
+   * buffer may always be queued.
+   */
+  private synchronized void handOff() throws IOException {
+    if (bufUsed == 0)
+      return;
+    long offset = startOffset();
+    awaitInflight(Math.max(0, maxInflightBytes - bufUsed));
+    checkWriteFailure();
+
+    pending.add(new Chunk(buffer, bufUsed, offset));
+    inflightBytes += bufUsed;
+    writeOffset += bufUsed;
+    buffer = pool.acquire(bufferSize);
+    bufUsed = 0;
+
+    if (writers < parallelism) {
+      writers++;
+      try {
+        executor.execute(drainer);
+      } catch (RejectedExecutionException e) {
+        /* the file system is closing; write in the caller */
+        drain();
+      }
+    }
+  }
+
+  /*
+   * Write queued buffers until the queue is empty. Up to parallelism of
+   * these run at once, each on an I/O thread, holding the stream lock only
+   * between writes. After a failure the queued buffers are dropped.
+   */
+  private void drain() {
+    while (true) {
+      Chunk c;
+      synchronized (this) {
+        c = writeFailure == null ? pending.poll() : null;
+        if (c == null) {
+          writers--;
+          return;
+        }
+      }
+
+      IOException failure = null;
+      try {
+        writeAt(c.buf, c.length, c.offset);
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      }
+
+      synchronized (this) {
+        inflightBytes -= c.length;
+        pool.release(c.buf);
+        if (failure != null) {
+          LOG.debug("write-behind failed on fd " + fileHandle, failure);
+          if (writeFailure == null)
+            writeFailure = failure;
+          for (Chunk d : pending) {
+            inflightBytes -= d.length;
+            pool.release(d.buf);
+          }
+          pending.clear();
+        }
+        notifyAll();
       }
+    }
+  }
 
-      assert(ret > 0);
-      assert(ret < bufUsed);
+  /*
+   * Write all of buf[0, len) at offset.
+   */
+  private void writeAt(byte[] buf, int len, long offset) throws IOException {
+    ByteBuffer view = ByteBuffer.wrap(buf, 0, len);
+    while (view.hasRemaining()) {
+      int ret = ceph.write(fileHandle, view, offset + view.position(), pool);
+      if (ret <= 0)
+        throw new IOException("ceph.write: ret=" + ret);
+    }
+  }
 
-      /*
-       * TODO: handle a partial write by shifting the remainder of the data in
-       * the buffer back to the beginning and retrying the write. It would
-       * probably be better to use a ByteBuffer 'view' here, and I believe
-       * using a ByteBuffer has some other performance benefits but we'll
-       * likely need to update the libcephfs-jni implementation.
-       */
-      int remaining = bufUsed - ret;
-      System.arraycopy(buffer, ret, buffer, 0, remaining);
-      bufUsed -= ret;
+  /*
+   * Wait until at most limit bytes are queued for the background writer.
+   * Like the synchronous write it replaces, this does not give up when
+   * interrupted.
+   */
+  private synchronized void awaitInflight(long limit) {
+    boolean interrupted = false;
+    while (inflightBytes > limit) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
     }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
 
-    assert(bufUsed == 0);
+  private synchronized void checkWriteFailure() throws IOException {
+    if (writeFailure != null)
+      throw new IOException("write-behind failed on fd " + fileHandle
+          + ": " + writeFailure.getMessage(), writeFailure);
+  }
+
+  /* Bytes queued for the background writer. */
+  synchronized long getInflightBytes() {
+    return inflightBytes;
+  }
+
+  /*
+   * Moves all buffered data into libcephfs, waiting for the background
+   * writer when write-behind is on.
+   */
+  private synchronized void flushAll() throws IOException {
+    if (writeBehind) {
+      checkWriteFailure();
+      handOff();
+      awaitInflight(0);
+      checkWriteFailure();
+    } else {
+      flushBuffer();
+    }
   }
    
+  /**
+   * Flush according to ceph.output.flush.policy. By default this is an
+   * hsync, so flush() makes the data durable as it always has; writers
+   * that only need it visible can choose hflush.
+   */
   @Override
   public synchronized void flush() throws IOException {
     checkOpen();
-    flushBuffer(); // buffer -> libcephfs
-    ceph.fsync(fileHandle); // libcephfs -> cluster
+    switch (flushPolicy) {
+    case NONE:
+      checkWriteFailure();
+      break;
+    case HFLUSH:
+      hflush();
+      break;
+    case HSYNC:
+      hsync();
+      break;
+    }
+  }
+
+  /**
+   * Hadoop 2's Syncable still declares sync(); newer versions do not, so
+   * this is not marked as an override.
+   */
+  @Deprecated
+  public void sync() throws IOException {
+    hflush();
+  }
+
+  /**
+   * Move buffered data into libcephfs, making it visible to other clients.
+   */
+  @Override
+  public synchronized void hflush() throws IOException {
+    checkOpen();
+    flushAll(); // buffer -> libcephfs
+  }
+
+  /**
+   * Move buffered data into libcephfs and wait until the cluster has made
+   * it durable.
+   */
+  @Override
+  public synchronized void hsync() throws IOException {
+    checkOpen();
+    flushAll(); // buffer -> libcephfs
+    if (syncCoordinator != null)
+      syncCoordinator.sync(fileHandle);
+    else
+      ceph.fsync(fileHandle); // libcephfs -> cluster
   }
   
+  /**
+   * Close the stream after syncing it. The file handle is closed even if
+   * buffered data cannot be written, in which case the write error is
+   * thrown. In async close mode the sync and close are completed in the
+   * background, and their errors are reported by the completer.
+   */
   @Override
   public synchronized void close() throws IOException {
     checkOpen();
-    flush();
-    ceph.close(fileHandle);
-    closed = true;
+    boolean handedOver = false;
+    try {
+      if (closeCompleter != null) {
+        flushAll();
+        if (checksum != null)
+          checksum.store(fileHandle);
+        closeCompleter.submit(fileHandle);
+        handedOver = true;
+      } else {
+        hsync();
+        if (checksum != null)
+          checksum.store(fileHandle);
+      }
+    } finally {
+      /* nothing may still be writing from our buffers */
+      awaitInflight(0);
+      if (!handedOver)
+        ceph.close(fileHandle);
+      closed = true;
+      if (registry != null)
+        registry.unregister(registration);
+      pool.release(buffer);
+      buffer = null;
+    }
   }
 }
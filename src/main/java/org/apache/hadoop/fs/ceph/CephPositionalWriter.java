@@ -0,0 +1,154 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Positional writes into a file of a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A handle for building a file from writes at explicit offsets, typically
+ * by many threads writing disjoint ranges at once. Obtained from
+ * {@link CephFileSystem#createPositional}.
+ *
+ * Every writeAt goes straight to libcephfs at its offset; nothing is
+ * buffered and no file position is shared, so writers do not wait for
+ * each other. Overlapping writes from different threads land in an
+ * unspecified order. The file is synced once, by close(), which first
+ * waits for writes in progress; writes after close fail.
+ */
+public class CephPositionalWriter implements Closeable {
+  private final CephFsProto ceph;
+  private final int fileHandle;
+  private final CephBufferPool pool;
+  private final CephStreamRegistry registry;
+  private final CephStreamRegistry.Handle registration;
+  private final CephSyncCoordinator syncCoordinator;
+
+  /* writes hold the read lock, so only close excludes them */
+  private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private boolean closed = false;
+
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong writeOps = new AtomicLong();
+
+  /**
+   * @param pool Stages writes that cannot be made in place, see
+   * {@link #writeAt(long, ByteBuffer)}. May be null, in which case the
+   * staging buffers are not pooled.
+   * @param registry Tracks the file handle, closing it should the writer
+   * be garbage collected while open. May be null.
+   * @param syncCoordinator Batches the final sync with those of other
+   * files. May be null, in which case close() does an fsync.
+   */
+  CephPositionalWriter(CephFsProto ceph, int fh, CephBufferPool pool,
+      CephStreamRegistry registry, CephSyncCoordinator syncCoordinator) {
+    this.ceph = ceph;
+    this.fileHandle = fh;
+    this.pool = pool != null ? pool : new CephBufferPool(0);
+    this.registry = registry;
+    this.syncCoordinator = syncCoordinator;
+    registration = registry == null ? null : registry.register(this, fh, false);
+  }
+
+  /**
+   * Write all of buf at offset.
+   */
+  public void writeAt(long offset, byte[] buf) throws IOException {
+    writeAt(offset, ByteBuffer.wrap(buf));
+  }
+
+  /**
+   * Write len bytes of buf, starting at off, at file offset offset.
+   */
+  public void writeAt(long offset, byte[] buf, int off, int len)
+      throws IOException {
+    writeAt(offset, ByteBuffer.wrap(buf, off, len));
+  }
+
+  /**
+   * Write the remaining bytes of src at offset, advancing its position.
+   * libcephfs-jni only writes arrays from index zero, so a heap buffer
+   * whose data starts there is written in place; any other, such as
+   * part of an array at a non-zero offset or a direct buffer, is copied
+   * through a pooled buffer a bounded piece at a time.
+   * @return the number of bytes written, which is all of them.
+   */
+  public int writeAt(long offset, ByteBuffer src) throws IOException {
+    if (offset < 0)
+      throw new IllegalArgumentException("Negative offset: " + offset);
+    closeLock.readLock().lock();
+    try {
+      if (closed)
+        throw new IOException("write to closed writer (fd=" + fileHandle + ")");
+      int total = src.remaining();
+      long pos = offset;
+      while (src.hasRemaining()) {
+        int ret = ceph.write(fileHandle, src, pos, pool);
+        if (ret <= 0)
+          throw new IOException("ceph.write: ret=" + ret);
+        pos += ret;
+        writeOps.incrementAndGet();
+      }
+      bytesWritten.addAndGet(total);
+      return total;
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Wait for writes in progress, sync the file once and close it. The file
+   * handle is closed even if the sync fails. Closing twice does nothing.
+   */
+  @Override
+  public void close() throws IOException {
+    closeLock.writeLock().lock();
+    try {
+      if (closed)
+        return;
+      closed = true;
+      try {
+        if (syncCoordinator != null)
+          syncCoordinator.sync(fileHandle);
+        else
+          ceph.fsync(fileHandle);
+      } finally {
+        ceph.close(fileHandle);
+        if (registry != null)
+          registry.unregister(registration);
+      }
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+  }
+
+  /** Bytes written through this handle. */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /** Calls made to libcephfs to write them. */
+  public long getWriteOps() {
+    return writeOps.get();
+  }
+}
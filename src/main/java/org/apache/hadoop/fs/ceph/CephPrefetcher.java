@@ -0,0 +1,315 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Background prefetching of file chunks for CephInputStream.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps up to depth chunk-aligned reads in flight ahead of a sequential
+ * reader. Chunks are fetched with positional reads on a shared executor
+ * into buffers from the file system's buffer pool: a buffer goes back to
+ * the pool once the reader has moved past its chunk, so a stream never
+ * holds more than depth + 1 chunk buffers. A take() outside the scheduled
+ * window cancels everything that has not started and restarts the
+ * pipeline at the new position. close() waits for reads still running,
+ * so that none of them touches the file handle once it is closed.
+ *
+ * Not thread safe; the owning stream serializes access.
+ */
+class CephPrefetcher {
+  private static final Log LOG = LogFactory.getLog(CephPrefetcher.class);
+
+  static class Chunk {
+    static final int NEW = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int CANCELLED = 3;
+    static final int ABANDONED = 4;
+
+    final long offset;
+    final byte[] buf;
+    /* whoever moves the state decides who owns the buffer */
+    final AtomicInteger state = new AtomicInteger(NEW);
+    Future<Integer> future;
+    int length = -1;
+
+    Chunk(long offset, byte[] buf) {
+      this.offset = offset;
+      this.buf = buf;
+    }
+
+    boolean contains(long pos) {
+      return pos >= offset && pos < offset + length;
+    }
+  }
+
+  private final CephFsProto ceph;
+  private final int fileHandle;
+  private final long fileLength;
+  private final int chunkSize;
+  private final int maxDepth;
+  private int depth;
+  private final ExecutorService executor;
+  private final CephBufferPool pool;
+
+  private final ArrayDeque<Chunk> queue = new ArrayDeque<Chunk>();
+  private Chunk current = null;
+  private long nextOffset = 0;
+  private long bytesFetched = 0;
+
+  /* reads started and not yet finished, including abandoned ones */
+  private final Object runningLock = new Object();
+  private int running = 0;
+
+  CephPrefetcher(CephFsProto ceph, int fh, long flength, int chunkSize,
+      int depth, ExecutorService executor, CephBufferPool pool) {
+    this.ceph = ceph;
+    this.fileHandle = fh;
+    this.fileLength = flength;
+    this.chunkSize = chunkSize;
+    this.maxDepth = Math.max(depth, 1);
+    this.depth = this.maxDepth;
+    this.executor = executor;
+    this.pool = pool;
+  }
+
+  /**
+   * Get the chunk containing pos, waiting for it to arrive if necessary.
+   * The returned chunk stays valid until the next call to take or cancel.
+   * @return the chunk, or null if pos is at or beyond the end of file.
+   */
+  Chunk take(long pos) throws IOException {
+    if (current != null && current.contains(pos))
+      return current;
+    recycle(current);
+    current = null;
+
+    if (pos >= fileLength)
+      return null;
+
+    /* skip over chunks the reader jumped past */
+    while (!queue.isEmpty() && queue.peek().offset + chunkSize <= pos)
+      discard(queue.poll());
+
+    if (queue.isEmpty() || queue.peek().offset > pos) {
+      cancel();
+      nextOffset = pos - (pos % chunkSize);
+    }
+    schedule();
+
+    Chunk chunk = queue.poll();
+    try {
+      chunk.length = await(chunk);
+    } catch (IOException e) {
+      /* after an interrupt the read may still be filling the buffer */
+      discard(chunk);
+      throw e;
+    }
+    schedule();
+
+    if (!chunk.contains(pos)) {
+      /* short read: the file shrunk underneath us */
+      recycle(chunk);
+      return null;
+    }
+    current = chunk;
+    return chunk;
+  }
+
+  /**
+   * Called when the reader seeks. Scheduled reads are kept if the target
+   * falls inside the window they cover and cancelled otherwise.
+   */
+  void seek(long pos) {
+    if (current != null && current.contains(pos))
+      return;
+    if (!queue.isEmpty() && queue.peek().offset <= pos && pos < nextOffset)
+      return;
+    cancel();
+  }
+
+  /**
+   * Drop all scheduled chunks. Reads that have not started are cancelled;
+   * reads already running finish in the background and then return their
+   * buffers to the pool.
+   */
+  void cancel() {
+    while (!queue.isEmpty())
+      discard(queue.poll());
+  }
+
+  /**
+   * Cancel everything, wait for reads already running and release all
+   * buffers. Like close itself this does not give up when interrupted.
+   */
+  void close() {
+    cancel();
+    recycle(current);
+    current = null;
+
+    boolean interrupted = false;
+    synchronized (runningLock) {
+      while (running > 0) {
+        try {
+          runningLock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Keep no more chunks in flight than needed to cover bytes ahead of the
+   * reader, and at least one. A negative value restores the configured
+   * depth. Chunks already scheduled are left alone.
+   */
+  void setReadahead(long bytes) {
+    if (bytes < 0)
+      depth = maxDepth;
+    else
+      depth = (int) Math.max(1, Math.min(maxDepth,
+            (bytes + chunkSize - 1) / chunkSize));
+  }
+
+  long getBytesFetched() {
+    return bytesFetched;
+  }
+
+  private void schedule() {
+    while (queue.size() < depth && nextOffset < fileLength) {
+      final long offset = nextOffset;
+      final int size = (int) Math.min(chunkSize, fileLength - offset);
+      final byte[] buf = pool.acquire(chunkSize);
+      final Chunk chunk = new Chunk(offset, buf);
+
+      FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+        public Integer call() throws IOException {
+          /* counted before it can start, so close() cannot miss it */
+          synchronized (runningLock) {
+            running++;
+          }
+          if (!chunk.state.compareAndSet(Chunk.NEW, Chunk.RUNNING)) {
+            finished();
+            return -1;
+          }
+          try {
+            int done = 0;
+            while (done < size) {
+              int ret = ceph.read(fileHandle, buf, done, size - done,
+                  offset + done);
+              if (ret < 0)
+                throw new IOException("ceph.read: ret=" + ret);
+              if (ret == 0)
+                break;
+              done += ret;
+            }
+            return done;
+          } finally {
+            if (!chunk.state.compareAndSet(Chunk.RUNNING, Chunk.DONE))
+              pool.release(buf);
+            finished();
+          }
+        }
+      });
+      chunk.future = task;
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        /* the file system is closing; read in the caller */
+        task.run();
+      }
+
+      queue.add(chunk);
+      nextOffset += chunkSize;
+    }
+  }
+
+  private void finished() {
+    synchronized (runningLock) {
+      if (--running == 0)
+        runningLock.notifyAll();
+    }
+  }
+
+  private int await(Chunk chunk) throws IOException {
+    try {
+      int length = chunk.future.get().intValue();
+      bytesFetched += length;
+      return length;
+    } catch (InterruptedException e) {
+      cancel();
+      throw new InterruptedIOException(
+          "Interrupted waiting for prefetch of fd " + fileHandle
+          + " at offset " + chunk.offset);
+    } catch (CancellationException e) {
+      /* dropped by the file system's executor on close */
+      cancel();
+      throw new IOException("Prefetch of fd " + fileHandle + " at offset "
+          + chunk.offset + " cancelled: file system closed");
+    } catch (ExecutionException e) {
+      cancel();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new IOException("Prefetch of fd " + fileHandle + " at offset "
+          + chunk.offset + " failed", cause);
+    }
+  }
+
+  /*
+   * A chunk whose read never started, or has finished, gives its buffer
+   * back to the pool here. A read that is still running keeps its buffer
+   * and releases it itself when it completes.
+   */
+  private void discard(Chunk chunk) {
+    chunk.future.cancel(false);
+    if (chunk.state.compareAndSet(Chunk.NEW, Chunk.CANCELLED) ||
+        chunk.state.get() == Chunk.DONE) {
+      recycle(chunk);
+    } else if (chunk.state.compareAndSet(Chunk.RUNNING, Chunk.ABANDONED)) {
+      LOG.trace("CephPrefetcher: abandoning in-flight read of fd "
+          + fileHandle + " at offset " + chunk.offset);
+    } else {
+      /* finished between the two checks */
+      recycle(chunk);
+    }
+  }
+
+  private void recycle(Chunk chunk) {
+    if (chunk != null)
+      pool.release(chunk.buf);
+  }
+}
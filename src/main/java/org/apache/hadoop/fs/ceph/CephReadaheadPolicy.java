@@ -0,0 +1,172 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Decides how much a CephInputStream reads ahead on each buffer fill.
+ */
+package org.apache.hadoop.fs.ceph;
+
+/**
+ * Readahead window sizing for a CephInputStream.
+ *
+ * The policy looks at where each buffer fill starts relative to the
+ * previous one. Fills that continue exactly where the last one ended are
+ * sequential and double the window up to the maximum. Fills separated by
+ * a repeating distance are strided and only read what the caller asked
+ * for. Anything else is random and drops the window to the minimum.
+ *
+ * Fill sizes are chosen so that a fill ends on a stripe unit boundary
+ * (equal to the object size for files created by CephFileSystem), which
+ * keeps consecutive fills from each touching the same object twice.
+ *
+ * A caller-set limit caps how far a fill may run past what the caller
+ * asked for, whatever the pattern.
+ *
+ * Not thread safe; the owning stream serializes access.
+ */
+class CephReadaheadPolicy {
+
+  enum Pattern { SEQUENTIAL, STRIDED, RANDOM }
+
+  private final int minWindow;
+  private final int maxWindow;
+  private final int unit;
+
+  private int window;
+  private long limit = -1;
+  private Pattern pattern = Pattern.SEQUENTIAL;
+
+  private long lastFillPos = -1;
+  private long lastFillEnd = 0;
+  private long lastStride = 0;
+
+  private long bytesReadAhead = 0;
+  private long bytesConsumed = 0;
+
+  /**
+   * @param minWindow smallest fill size.
+   * @param maxWindow largest fill size.
+   * @param initialWindow fill size used before any pattern is detected.
+   * @param unit the file stripe unit that fills are aligned to.
+   */
+  CephReadaheadPolicy(int minWindow, int maxWindow, int initialWindow,
+      int unit) {
+    if (minWindow <= 0 || maxWindow < minWindow)
+      throw new IllegalArgumentException("Invalid readahead window: min="
+          + minWindow + " max=" + maxWindow);
+    this.minWindow = minWindow;
+    this.maxWindow = maxWindow;
+    this.unit = unit > 0 ? unit : minWindow;
+    this.window = Math.max(minWindow, Math.min(initialWindow, maxWindow));
+  }
+
+  /**
+   * Compute the size of the next buffer fill and update the detected
+   * access pattern.
+   * @param pos the file offset the fill starts at.
+   * @param wanted the number of bytes the caller is waiting for.
+   * @return the number of bytes to read.
+   */
+  int nextFillSize(long pos, int wanted) {
+    if (lastFillPos >= 0) {
+      long stride = pos - lastFillPos;
+      if (pos == lastFillEnd) {
+        if (pattern == Pattern.SEQUENTIAL)
+          window = (int) Math.min((long) window * 2, maxWindow);
+        else
+          window = Math.max(window, minWindow);
+        pattern = Pattern.SEQUENTIAL;
+      } else if (pos > lastFillEnd && pos - lastFillEnd < window &&
+          pattern == Pattern.SEQUENTIAL) {
+        /* a short forward skip keeps a sequential scan going */
+      } else if (stride != 0 && stride == lastStride) {
+        pattern = Pattern.STRIDED;
+        window = minWindow;
+      } else {
+        pattern = Pattern.RANDOM;
+        window = minWindow;
+      }
+      lastStride = stride;
+    }
+
+    long size = Math.max(window, Math.min(wanted, maxWindow));
+    long end = pos + size;
+
+    if (size >= unit) {
+      /* end on a unit boundary, but never issue a tiny fill */
+      long aligned = end - (end % unit);
+      if (aligned - pos >= minWindow)
+        end = aligned;
+    } else {
+      /* small fills should not straddle two objects */
+      long boundary = pos - (pos % unit) + unit;
+      if (end > boundary && boundary - pos >= Math.min(wanted, minWindow))
+        end = boundary;
+    }
+
+    if (limit >= 0)
+      end = Math.min(end, pos + Math.max(wanted, limit));
+
+    lastFillPos = pos;
+    lastFillEnd = end;
+    return (int) (end - pos);
+  }
+
+  /**
+   * Cap fills at the larger of the bytes wanted and limit, or remove the
+   * cap if limit is negative.
+   */
+  void setLimit(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Record the outcome of a fill. A short read moves the expected start of
+   * the next sequential fill back to where the data actually ended.
+   */
+  void filled(long pos, int bytes) {
+    if (bytes > 0)
+      bytesReadAhead += bytes;
+    lastFillEnd = pos + Math.max(bytes, 0);
+  }
+
+  /**
+   * Record bytes handed from the read buffer to the caller.
+   */
+  void consumed(int bytes) {
+    bytesConsumed += bytes;
+  }
+
+  Pattern getPattern() {
+    return pattern;
+  }
+
+  int getWindow() {
+    return window;
+  }
+
+  int getMaxWindow() {
+    return maxWindow;
+  }
+
+  long getBytesReadAhead() {
+    return bytesReadAhead;
+  }
+
+  long getBytesConsumed() {
+    return bytesConsumed;
+  }
+}
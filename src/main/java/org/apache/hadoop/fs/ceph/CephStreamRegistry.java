@@ -0,0 +1,225 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Bookkeeping of the streams open on a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks the streams open on a CephFileSystem and closes the Ceph file
+ * handles of streams that were garbage collected without being closed.
+ *
+ * Each stream registers a phantom reference to itself together with its
+ * file handle. A daemon thread waits on the reference queue and closes the
+ * handles of streams that become unreachable while still registered. This
+ * replaces finalizers, which slow down every collection and keep a dead
+ * stream and its buffer alive for an extra GC cycle. A leaked output
+ * stream's unflushed buffer cannot be recovered this way and is lost,
+ * which is logged.
+ *
+ * With leak detection on, the stack of every stream's creation is
+ * recorded and logged when the stream is found leaked.
+ */
+public class CephStreamRegistry {
+  private static final Log LOG = LogFactory.getLog(CephStreamRegistry.class);
+
+  /**
+   * A registered stream. Holds everything needed to clean up after the
+   * stream, and nothing that refers back to it.
+   */
+  static final class Handle extends PhantomReference<Object> {
+    final int fd;
+    final boolean input;
+    final Throwable allocation;
+    boolean unbuffered = false;
+
+    private Handle(Object stream, ReferenceQueue<Object> queue, int fd,
+        boolean input, Throwable allocation) {
+      super(stream, queue);
+      this.fd = fd;
+      this.input = input;
+      this.allocation = allocation;
+    }
+  }
+
+  private final CephFsProto ceph;
+  private final boolean leakDetection;
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+  /* keeps the phantom references reachable until their stream is done */
+  private final Set<Handle> handles = new HashSet<Handle>();
+  private final Thread reaper;
+  private volatile boolean closed = false;
+
+  private int openInputStreams = 0;
+  private int unbufferedInputStreams = 0;
+  private long leakedStreams = 0;
+
+  CephStreamRegistry(CephFsProto ceph, boolean leakDetection) {
+    this.ceph = ceph;
+    this.leakDetection = leakDetection;
+    this.reaper = new Thread("ceph-stream-reaper") {
+      public void run() {
+        while (!closed) {
+          try {
+            reap((Handle) queue.remove());
+          } catch (InterruptedException e) {
+            // closed
+          }
+        }
+      }
+    };
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  /**
+   * Start tracking a stream that owns fd.
+   */
+  Handle register(Object stream, int fd, boolean input) {
+    Throwable allocation = leakDetection ?
+      new Throwable("stream on fd " + fd + " created here") : null;
+    Handle h = new Handle(stream, queue, fd, input, allocation);
+    synchronized (this) {
+      handles.add(h);
+      if (input)
+        openInputStreams++;
+    }
+    return h;
+  }
+
+  /**
+   * Stop tracking a stream that closed its file handle.
+   */
+  void unregister(Handle h) {
+    synchronized (this) {
+      if (!remove(h))
+        return;
+    }
+    h.clear();
+  }
+
+  synchronized void setUnbuffered(Handle h, boolean unbuffered) {
+    if (h.unbuffered == unbuffered || !handles.contains(h))
+      return;
+    h.unbuffered = unbuffered;
+    unbufferedInputStreams += unbuffered ? 1 : -1;
+  }
+
+  private boolean remove(Handle h) {
+    if (!handles.remove(h))
+      return false;
+    if (h.input) {
+      openInputStreams--;
+      if (h.unbuffered)
+        unbufferedInputStreams--;
+    }
+    return true;
+  }
+
+  /*
+   * Close the handle of a stream that was collected while still open.
+   */
+  private void reap(Handle h) {
+    synchronized (this) {
+      if (!remove(h))
+        return;
+      leakedStreams++;
+    }
+    String what = (h.input ? "input" : "output") + " stream on fd " + h.fd;
+    if (h.input)
+      LOG.warn("Closing leaked " + what, h.allocation);
+    else
+      LOG.warn("Closing leaked " + what + "; unflushed data is lost",
+          h.allocation);
+    if (h.allocation == null) {
+      LOG.warn("Set " + CephConfigKeys.CEPH_STREAM_LEAK_DETECTION_KEY
+          + " to record where leaked streams are created");
+    }
+    try {
+      ceph.close(h.fd);
+    } catch (IOException e) {
+      LOG.warn("Failed to close leaked " + what + ": " + e);
+    }
+  }
+
+  /**
+   * Stop the reaper thread after closing the handles of streams already
+   * found leaked. Streams still open are left alone.
+   */
+  void close() {
+    closed = true;
+    reaper.interrupt();
+    try {
+      reaper.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Handle h;
+    while ((h = (Handle) queue.poll()) != null)
+      reap(h);
+  }
+
+  /** Number of Ceph file handles held by open streams. */
+  public synchronized int getOpenFds() {
+    return handles.size();
+  }
+
+  /** Number of open input streams. */
+  public synchronized int getOpenInputStreams() {
+    return openInputStreams;
+  }
+
+  /** Number of open output streams. */
+  public synchronized int getOpenOutputStreams() {
+    return handles.size() - openInputStreams;
+  }
+
+  /** Number of open input streams holding a read buffer. */
+  public synchronized int getBufferedInputStreams() {
+    return openInputStreams - unbufferedInputStreams;
+  }
+
+  /** Number of open input streams that released their read buffer. */
+  public synchronized int getUnbufferedInputStreams() {
+    return unbufferedInputStreams;
+  }
+
+  /** Number of streams that were garbage collected without being closed. */
+  public synchronized long getLeakedStreams() {
+    return leakedStreams;
+  }
+
+  public boolean isLeakDetectionEnabled() {
+    return leakDetection;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephStreamRegistry[fds=" + handles.size()
+      + " input=" + openInputStreams + " unbuffered=" + unbufferedInputStreams
+      + " leaked=" + leakedStreams + "]";
+  }
+}
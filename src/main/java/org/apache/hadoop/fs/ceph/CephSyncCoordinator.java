@@ -0,0 +1,217 @@
+// -*- mode:Java; tab-width:2; c-basic-offset:2; indent-tabs-mode:t -*-
+
+/**
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ *
+ * Group commit of the fsyncs issued by the streams of a CephFileSystem.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches concurrent fsync requests so that many streams syncing at once
+ * cost the cluster one round trip instead of one each.
+ *
+ * The first request to arrive opens a batch and becomes its leader. Later
+ * requests join the open batch and wait. The leader closes the batch once
+ * no request has joined for the batching window, or once the batch has
+ * been open for the maximum latency, and never while the previous batch
+ * is still being synced: requests arriving during a sync form the next
+ * batch. With a zero window batches are only formed from requests that
+ * arrive during a sync, and a lone request is issued immediately.
+ *
+ * A batch covering a single file is synced with fsync. A batch covering
+ * syncFsMin or more files is synced with a single sync_fs, which also
+ * flushes other files of the mount; smaller batches are a series of
+ * fsyncs. Every waiter is released when its batch completes and sees the
+ * error, if any, of the call that synced its file.
+ */
+public class CephSyncCoordinator {
+
+  private static final class Batch {
+    final Set<Integer> fds = new LinkedHashSet<Integer>();
+    final long opened = System.nanoTime();
+    long lastArrival = opened;
+    boolean done = false;
+    IOException syncFsFailure = null;
+    Map<Integer, IOException> fsyncFailures = null;
+  }
+
+  private final CephFsProto ceph;
+  private final long windowNanos;
+  private final long maxLatencyNanos;
+  private final int syncFsMin;
+
+  /* guarded by this */
+  private Batch open = null;
+  private boolean syncing = false;
+
+  private long syncs = 0;
+  private long batches = 0;
+  private long syncFsCalls = 0;
+  private long fsyncCalls = 0;
+  private int maxBatchSize = 0;
+
+  /**
+   * @param window how long, in microseconds, a batch stays open after the
+   * last request joined it.
+   * @param maxLatency the longest, in microseconds, a batch stays open.
+   * @param syncFsMin the number of files from which a batch is synced with
+   * sync_fs instead of a series of fsyncs.
+   */
+  CephSyncCoordinator(CephFsProto ceph, long window, long maxLatency,
+      int syncFsMin) {
+    this.ceph = ceph;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(window);
+    this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatency);
+    this.syncFsMin = Math.max(2, syncFsMin);
+  }
+
+  /**
+   * Sync fd, possibly together with the files of concurrent callers. Like
+   * fsync itself this does not give up when interrupted.
+   */
+  void sync(int fd) throws IOException {
+    Batch b;
+    boolean interrupted = false;
+    synchronized (this) {
+      syncs++;
+      boolean leader = open == null;
+      if (leader)
+        open = new Batch();
+      b = open;
+      b.fds.add(fd);
+      b.lastArrival = System.nanoTime();
+
+      if (leader) {
+        while (true) {
+          long closeAt = Math.min(b.lastArrival + windowNanos,
+              b.opened + maxLatencyNanos);
+          long wait = closeAt - System.nanoTime();
+          if (!syncing && wait <= 0)
+            break;
+          try {
+            if (syncing)
+              wait();
+            else
+              TimeUnit.NANOSECONDS.timedWait(this, wait);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        open = null;
+        syncing = true;
+        batches++;
+        maxBatchSize = Math.max(maxBatchSize, b.fds.size());
+      } else {
+        while (!b.done) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+    }
+
+    if (!b.done) {
+      /* we lead: nothing else touches b.fds now that the batch is closed */
+      issue(b);
+      synchronized (this) {
+        b.done = true;
+        syncing = false;
+        notifyAll();
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    IOException failure = b.syncFsFailure;
+    if (failure == null && b.fsyncFailures != null)
+      failure = b.fsyncFailures.get(fd);
+    if (failure != null)
+      throw new IOException("sync of fd " + fd + " failed: "
+          + failure.getMessage(), failure);
+  }
+
+  private void issue(Batch b) {
+    if (b.fds.size() >= syncFsMin) {
+      synchronized (this) {
+        syncFsCalls++;
+      }
+      try {
+        ceph.sync_fs();
+      } catch (IOException e) {
+        b.syncFsFailure = e;
+      }
+      return;
+    }
+    for (int fd : b.fds) {
+      synchronized (this) {
+        fsyncCalls++;
+      }
+      try {
+        ceph.fsync(fd);
+      } catch (IOException e) {
+        if (b.fsyncFailures == null)
+          b.fsyncFailures = new HashMap<Integer, IOException>();
+        b.fsyncFailures.put(fd, e);
+      }
+    }
+  }
+
+  /** Number of sync requests. */
+  public synchronized long getSyncs() {
+    return syncs;
+  }
+
+  /** Number of batches issued. */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  /** Average number of sync requests served by a batch. */
+  public synchronized double getSyncsPerBatch() {
+    return batches == 0 ? 0 : (double) syncs / batches;
+  }
+
+  /** Largest number of files in one batch. */
+  public synchronized int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Number of sync_fs calls made. */
+  public synchronized long getSyncFsCalls() {
+    return syncFsCalls;
+  }
+
+  /** Number of fsync calls made. */
+  public synchronized long getFsyncCalls() {
+    return fsyncCalls;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CephSyncCoordinator[syncs=" + syncs + " batches=" + batches
+      + " maxBatch=" + maxBatchSize + " sync_fs=" + syncFsCalls
+      + " fsync=" + fsyncCalls + "]";
+  }
+}
@@ -42,6 +42,11 @@ import com.ceph.fs.CephFileExtent;
 
 class CephTalker extends CephFsProto {
 
+  /* strerror of the errnos getxattr callers care about */
+  private static final String ENODATA = "No data available";
+  private static final String ERANGE = "Numerical result out of range";
+  private static final String EOPNOTSUPP = "Operation not supported";
+
   private CephMount mount;
   private short defaultReplication;
 
@@ -292,6 +297,10 @@ class CephTalker extends CephFsProto {
     return mount.get_stripe_unit_granularity();
   }
 
+  int get_file_stripe_unit(int fd) throws IOException {
+    return mount.get_file_stripe_unit(fd);
+  }
+
   void setattr(Path path, CephStat stat, int mask) throws IOException {
     mount.setattr(pathString(path), stat, mask);
   }
@@ -300,6 +309,55 @@ class CephTalker extends CephFsProto {
     mount.fsync(fd, false);
   }
 
+  void sync_fs() throws IOException {
+    mount.sync_fs();
+  }
+
+  /*
+   * Returns null if the attribute is not set. A value too large for the
+   * buffer is read again into one of the size it reports.
+   */
+  byte[] lgetxattr(Path path, String name) throws IOException {
+    String p = pathString(path);
+    byte[] buf = new byte[256];
+    while (true) {
+      try {
+        long len = getxattr(p, name, buf);
+        return Arrays.copyOf(buf, (int)len);
+      } catch (IOException e) {
+        if (isErrno(e, ENODATA))
+          return null;
+        if (!isErrno(e, ERANGE))
+          throw e;
+      }
+      /* a zero length buffer asks for the size of the value */
+      buf = new byte[(int)getxattr(p, name, new byte[0])];
+    }
+  }
+
+  /*
+   * CephMount declares only FileNotFoundException (ENOENT), but other
+   * errors come back from the native code as plain IOExceptions.
+   */
+  private long getxattr(String path, String name, byte[] buf)
+      throws IOException {
+    return mount.lgetxattr(path, name, buf);
+  }
+
+  /*
+   * libcephfs-jni reports errors other than ENOENT as an IOException
+   * carrying strerror(errno), which is all there is to tell them apart.
+   */
+  private static boolean isErrno(IOException e, String strerror) {
+    return !(e instanceof FileNotFoundException) &&
+      strerror.equals(e.getMessage());
+  }
+
+  void lsetxattr(Path path, String name, byte[] value) throws IOException {
+    mount.lsetxattr(pathString(path), name, value, value.length,
+        CephMount.XATTR_NONE);
+  }
+
   long lseek(int fd, long offset, int whence) throws IOException {
     return mount.lseek(fd, offset, whence);
   }
@@ -312,10 +370,49 @@ class CephTalker extends CephFsProto {
     return (int)mount.read(fd, buf, size, offset);
   }
 
+  /*
+   * Read into the middle of a buffer. The libcephfs-jni interface always
+   * fills the array from index zero, so a read into a non-zero offset is
+   * staged through a temporary array.
+   */
+  int read(int fd, byte[] buf, int bufOffset, long size, long offset) throws IOException {
+    if (bufOffset == 0)
+      return read(fd, buf, size, offset);
+
+    byte[] tmp = new byte[(int)size];
+    int ret = read(fd, tmp, size, offset);
+    if (ret > 0)
+      System.arraycopy(tmp, 0, buf, bufOffset, ret);
+    return ret;
+  }
+
   String get_file_pool_name(int fd) {
     return mount.get_file_pool_name(fd);
   }
 
+  /*
+   * The data pool of a file, read from its layout's virtual xattr, which
+   * unlike the fd variant needs no open. Returns null if the client does
+   * not provide the xattr (ENODATA or EOPNOTSUPP); any other failure is
+   * thrown.
+   */
+  String get_file_pool_name(Path path) throws IOException {
+    byte[] value;
+    try {
+      value = lgetxattr(path, "ceph.file.layout.pool");
+    } catch (IOException e) {
+      if (isErrno(e, EOPNOTSUPP))
+        return null;
+      throw e;
+    }
+    if (value == null)
+      return null;
+    String pool = new String(value, "UTF-8").trim();
+    if (pool.isEmpty())
+      throw new IOException("Empty layout pool for " + path);
+    return pool;
+  }
+
   int get_pool_id(String pool_name) throws IOException {
     try {
       return mount.get_pool_id(pool_name);
@@ -0,0 +1,434 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Micro-benchmarks of CephFileSystem running on the in-memory
+ * CephFsProto. Their timings depend on the machine, so they are not part
+ * of the unit tests and only run when asked for:
+ *
+ *   java -cp &lt;test classpath&gt; org.apache.hadoop.fs.ceph.CephBenchmark [name ...]
+ *
+ * With no names every benchmark is run. Each prints a one line report.
+ */
+public class CephBenchmark {
+  private interface Benchmark {
+    String run() throws Exception;
+  }
+
+  private static final Map<String, Benchmark> BENCHMARKS =
+    new LinkedHashMap<String, Benchmark>();
+
+  static {
+    BENCHMARKS.put("stream-memory", new Benchmark() {
+      public String run() throws Exception {
+        return streamMemory();
+      }
+    });
+    BENCHMARKS.put("large-read-bypass", new Benchmark() {
+      public String run() throws Exception {
+        return largeReadBypass();
+      }
+    });
+    BENCHMARKS.put("write-behind", new Benchmark() {
+      public String run() throws Exception {
+        return writeBehind();
+      }
+    });
+    BENCHMARKS.put("flush-policy", new Benchmark() {
+      public String run() throws Exception {
+        return flushPolicy();
+      }
+    });
+    BENCHMARKS.put("group-commit", new Benchmark() {
+      public String run() throws Exception {
+        return groupCommit();
+      }
+    });
+    BENCHMARKS.put("parallel-object-writes", new Benchmark() {
+      public String run() throws Exception {
+        return parallelObjectWrites();
+      }
+    });
+    BENCHMARKS.put("positional-assembly", new Benchmark() {
+      public String run() throws Exception {
+        return positionalAssembly();
+      }
+    });
+    BENCHMARKS.put("async-close", new Benchmark() {
+      public String run() throws Exception {
+        return asyncClose();
+      }
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    Collection<String> names = args.length == 0 ? BENCHMARKS.keySet()
+      : Arrays.asList(args);
+    for (String name : names) {
+      Benchmark benchmark = BENCHMARKS.get(name);
+      if (benchmark == null) {
+        System.err.println("Unknown benchmark " + name + ", expected one of "
+            + BENCHMARKS.keySet());
+        System.exit(1);
+      }
+      System.out.println(name + ": " + benchmark.run());
+    }
+  }
+
+  private static CephFileSystem startFs(Configuration conf,
+      CephMemoryTalker ceph) throws Exception {
+    CephFileSystem fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    return fs;
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /*
+   * Heap per open stream on a small file, for streams that each hold a
+   * fixed 2 MiB buffer, as every stream used to, and for streams opened
+   * through CephFileSystem, which sizes buffers from bufferSize and the
+   * file length.
+   */
+  private static String streamMemory() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    conf.setLong(CephConfigKeys.CEPH_BUFFER_POOL_SIZE_KEY, 0);
+    CephFileSystem fs = startFs(conf, ceph);
+    ceph.putFile("/small", new byte[300]);
+
+    /* fixed buffers take a lot of heap, so fewer of those streams */
+    long fixed = heapPerStream(fs, ceph, conf, 100, true);
+    long sized = heapPerStream(fs, ceph, conf, 10000, false);
+    fs.close();
+
+    return "heap per open stream: fixed 2M buffer " + fixed
+      + ", sized buffer " + sized;
+  }
+
+  private static long heapPerStream(CephFileSystem fs, CephMemoryTalker ceph,
+      Configuration conf, int streams, boolean fixedBuffer) throws Exception {
+    InputStream[] open = new InputStream[streams];
+    long before = usedHeap();
+    for (int i = 0; i < streams; i++) {
+      if (fixedBuffer) {
+        int fd = ceph.open(new Path("/small"), CephMount.O_RDONLY, 0);
+        open[i] = new CephInputStream(conf, ceph, fd, 300, 2 << 20);
+      } else {
+        open[i] = fs.open(new Path("/small"), 4096);
+      }
+      open[i].read();
+    }
+    long after = usedHeap();
+    for (InputStream in : open)
+      in.close();
+    return (after - before) / streams;
+  }
+
+  /*
+   * Bytes staged through the stream buffer and time to read a file 20
+   * times in 1 MiB reads into the start of a reused array, with a 2 MiB
+   * buffer, which stages everything as every read used to, and with a
+   * 64 KiB buffer, which large reads bypass. Like libcephfs-jni, the
+   * in-memory Ceph stages reads into the middle of an array, so the
+   * bypassed reads are only copy-free because they land at offset 0.
+   */
+  private static String largeReadBypass() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    byte[] contents = new byte[3 * 1024 * 1024 + 17];
+    new Random(42).nextBytes(contents);
+    ceph.putFile("/file", contents);
+
+    byte[] buf = new byte[1 << 20];
+    long[] millis = new long[2];
+    long[] stagedBytes = new long[2];
+    long[] cephStaged = new long[2];
+    int[] bufferSizes = { 2 << 20, 64 * 1024 };
+    for (int i = 0; i < 2; i++) {
+      ceph.resetOpCounts();
+      long start = System.nanoTime();
+      for (int round = 0; round < 20; round++) {
+        int fd = ceph.open(new Path("/file"), CephMount.O_RDONLY, 0);
+        CephInputStream in = new CephInputStream(conf, ceph, fd,
+            contents.length, bufferSizes[i]);
+        while (in.read(buf, 0, buf.length) > 0)
+          ;
+        stagedBytes[i] += in.getBytesReadAhead();
+        in.close();
+      }
+      millis[i] = (System.nanoTime() - start) / 1000000;
+      cephStaged[i] = ceph.getOpCount("read_staged");
+    }
+    return "1M reads: 2M buffer staged " + stagedBytes[0] + " bytes ("
+      + cephStaged[0] + " staged Ceph reads) in " + millis[0]
+      + "ms, 64K buffer staged " + stagedBytes[1] + " bytes ("
+      + cephStaged[1] + " staged Ceph reads) in " + millis[1] + "ms";
+  }
+
+  private static CephOutputStream createStream(Configuration conf,
+      CephMemoryTalker ceph, ExecutorService executor) throws Exception {
+    int fd = ceph.open(new Path("/file"),
+        CephMount.O_WRONLY|CephMount.O_CREAT|CephMount.O_TRUNC, 0644);
+    return new CephOutputStream(conf, ceph, fd, 65536, executor, null, null,
+        null, null, null);
+  }
+
+  /*
+   * A producer that spends as long making each buffer as the cluster
+   * takes to write it. Synchronously the two add up; with write-behind
+   * they overlap.
+   */
+  private static String writeBehind() throws Exception {
+    final int chunks = 50;
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setIoLatency(2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    byte[] chunk = new byte[65536];
+    long[] millis = new long[2];
+    try {
+      for (int i = 0; i < 2; i++) {
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, i == 1);
+        CephOutputStream out = createStream(conf, ceph, executor);
+        long start = System.nanoTime();
+        for (int c = 0; c < chunks; c++) {
+          Thread.sleep(2); /* producing the next buffer */
+          out.write(chunk, 0, chunk.length);
+        }
+        out.close();
+        millis[i] = (System.nanoTime() - start) / 1000000;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return chunks + " x 64K writes with 2ms producer and 2ms write latency: "
+      + "synchronous " + millis[0] + "ms, write-behind " + millis[1] + "ms";
+  }
+
+  /*
+   * A log appender style writer that flushes after every record, under
+   * each flush policy, with 2ms syncs. flush() is an fsync by default.
+   */
+  private static String flushPolicy() throws Exception {
+    final int records = 200;
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setSyncLatency(2);
+    byte[] record = ("a log line of about eighty bytes, "
+        + "give or take a few bytes...\n").getBytes("UTF-8");
+    StringBuilder report = new StringBuilder(records + " flushed records:");
+    for (String policy : new String[] { "hsync", "hflush", "none" }) {
+      Configuration conf = new Configuration(false);
+      conf.set(CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_KEY, policy);
+      ceph.resetOpCounts();
+      CephOutputStream out = createStream(conf, ceph, null);
+      long start = System.nanoTime();
+      for (int i = 0; i < records; i++) {
+        out.write(record, 0, record.length);
+        out.flush();
+      }
+      out.close();
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      report.append(" " + policy + " " + elapsed + "ms ("
+          + ceph.getOpCount("write") + " writes, "
+          + ceph.getOpCount("fsync") + " fsyncs)");
+    }
+    return report.toString();
+  }
+
+  /*
+   * WAL style writers that sync every record, with 3ms syncs, with and
+   * without group commit.
+   */
+  private static String groupCommit() throws Exception {
+    final int writers = 16;
+    final int records = 20;
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setSyncLatency(3);
+    ExecutorService threads = Executors.newCachedThreadPool();
+    StringBuilder report = new StringBuilder(writers + " writers x "
+        + records + " hsyncs:");
+    try {
+      for (boolean group : new boolean[] { false, true }) {
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(CephConfigKeys.CEPH_SYNC_GROUP_ENABLED_KEY, group);
+        final CephFileSystem fs = startFs(conf, ceph);
+        ceph.resetOpCounts();
+
+        List<Future<Void>> done = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+          final Path path = new Path("/wal-" + w);
+          done.add(threads.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+              FSDataOutputStream out = fs.create(path);
+              for (int i = 0; i < records; i++) {
+                out.write(new byte[100]);
+                out.hsync();
+              }
+              out.close();
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> f : done)
+          f.get();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        long calls = ceph.getOpCount("fsync") + ceph.getOpCount("sync_fs");
+        report.append(" group=" + group + " " + elapsed + "ms, " + calls
+            + " cluster syncs");
+        if (group) {
+          report.append(String.format(" (%.1f syncs per batch)",
+                fs.getSyncCoordinator().getSyncsPerBatch()));
+        }
+        fs.close();
+      }
+    } finally {
+      threads.shutdownNow();
+    }
+    return report.toString();
+  }
+
+  /*
+   * A single write-behind writer of a file spanning 65 objects, with 5ms
+   * writes, writing one object at a time and then four at once.
+   */
+  private static String parallelObjectWrites() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setIoLatency(5);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    byte[] contents = new byte[64 * 65536 + 100];
+    new Random(11).nextBytes(contents);
+    StringBuilder report = new StringBuilder("65 objects, 5ms per write:");
+    try {
+      for (int parallelism : new int[] { 1, 4 }) {
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+        conf.setLong(CephConfigKeys.CEPH_WRITE_BEHIND_INFLIGHT_MAX_KEY,
+            8 * 65536);
+        conf.setInt(CephConfigKeys.CEPH_WRITE_BEHIND_PARALLELISM_KEY,
+            parallelism);
+        CephOutputStream out = createStream(conf, ceph, executor);
+        long start = System.nanoTime();
+        for (int off = 0; off < contents.length; off += 50000)
+          out.write(contents, off, Math.min(50000, contents.length - off));
+        out.close();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        report.append(" " + parallelism + " in flight " + elapsed + "ms");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return report.toString();
+  }
+
+  /*
+   * Build a file of 64 64 KiB pieces, with 5ms writes, from one
+   * positional writer thread and from eight, each filling every eighth
+   * piece.
+   */
+  private static String positionalAssembly() throws Exception {
+    final int piece = 65536;
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setIoLatency(5);
+    CephFileSystem fs = startFs(new Configuration(false), ceph);
+    ExecutorService threads = Executors.newCachedThreadPool();
+    final byte[] contents = new byte[64 * piece];
+    new Random(18).nextBytes(contents);
+    StringBuilder report = new StringBuilder("64 x 64K pieces, 5ms per "
+        + "write:");
+    try {
+      for (final int writers : new int[] { 1, 8 }) {
+        final CephPositionalWriter out =
+          fs.createPositional(new Path("/image"), true);
+        List<Future<Void>> done = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+          final int first = w;
+          done.add(threads.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+              for (int p = first; p < contents.length / piece; p += writers)
+                out.writeAt((long)p * piece, contents, p * piece, piece);
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> f : done)
+          f.get();
+        out.close();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        report.append(" " + writers + " writers " + elapsed + "ms");
+      }
+    } finally {
+      threads.shutdownNow();
+      fs.close();
+    }
+    return report.toString();
+  }
+
+  /*
+   * A task writing 200 small part files with 3ms syncs, closing them
+   * synchronously and then in async close mode.
+   */
+  private static String asyncClose() throws Exception {
+    final int parts = 200;
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.setSyncLatency(3);
+    long[] millis = new long[2];
+    for (int i = 0; i < 2; i++) {
+      Configuration conf = new Configuration(false);
+      conf.setBoolean(CephConfigKeys.CEPH_CLOSE_ASYNC_ENABLED_KEY, i == 1);
+      conf.setInt(CephConfigKeys.CEPH_CLOSE_ASYNC_MAX_PENDING_KEY, 16);
+      CephFileSystem fs = startFs(conf, ceph);
+      long start = System.nanoTime();
+      for (int p = 0; p < parts; p++) {
+        FSDataOutputStream out = fs.create(new Path("/out/part-" + p));
+        out.write(("part " + p + "\n").getBytes("UTF-8"));
+        out.close();
+      }
+      fs.awaitAsyncCloses();
+      millis[i] = (System.nanoTime() - start) / 1000000;
+      fs.close();
+    }
+    return parts + " part files, 3ms fsync: synchronous close " + millis[0]
+      + "ms, async close " + millis[1] + "ms";
+  }
+}
@@ -0,0 +1,621 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import com.ceph.crush.Bucket;
+import com.ceph.fs.CephFileAlreadyExistsException;
+import com.ceph.fs.CephFileExtent;
+import com.ceph.fs.CephMount;
+import com.ceph.fs.CephStat;
+import com.ceph.fs.CephStatVFS;
+
+/**
+ * An in-memory stand-in for CephTalker used by unit tests. Every call is
+ * counted by name so tests can assert on the number of round trips a code
+ * path makes, and an optional per-call latency can be injected into reads,
+ * writes and fsyncs to model a remote cluster.
+ */
+class CephMemoryTalker extends CephFsProto {
+  private static final int S_IFREG = 0100000;
+  private static final int S_IFDIR = 0040000;
+
+  static class Node {
+    final boolean dir;
+    int mode;
+    long mtime;
+    byte[] data = new byte[0];
+    long size = 0;
+    final Map<String, byte[]> xattrs = new HashMap<String, byte[]>();
+
+    Node(boolean dir, int mode) {
+      this.dir = dir;
+      this.mode = mode;
+      this.mtime = System.currentTimeMillis();
+    }
+  }
+
+  private static class Handle {
+    final String path;
+    final Node node;
+    final int flags;
+    long pos = 0;
+
+    Handle(String path, Node node, int flags) {
+      this.path = path;
+      this.node = node;
+      this.flags = flags;
+    }
+  }
+
+  private final Map<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+  private final Map<Integer, Handle> handles = new ConcurrentHashMap<Integer, Handle>();
+  private final ConcurrentHashMap<String, AtomicLong> ops =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicInteger nextFd = new AtomicInteger(3);
+
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final AtomicInteger maxInflight = new AtomicInteger();
+
+  private volatile long ioLatencyMillis = 0;
+  private volatile long syncLatencyMillis = 0;
+  private int stripeUnit = 65536;
+  private volatile boolean layoutXattrs = true;
+  private final AtomicInteger layoutXattrFailures = new AtomicInteger();
+  private volatile CountDownLatch readGate = null;
+  private volatile long readGateOffset = 0;
+
+  CephMemoryTalker() {
+    nodes.put("/", new Node(true, 0755));
+  }
+
+  /* test knobs and probes */
+
+  void setIoLatency(long millis) {
+    ioLatencyMillis = millis;
+  }
+
+  void setSyncLatency(long millis) {
+    syncLatencyMillis = millis;
+  }
+
+  void setStripeUnit(int su) {
+    stripeUnit = su;
+  }
+
+  /*
+   * Positional reads at or past offset started while a gate is set block
+   * until it opens. A read whose fd was closed while it was blocked is
+   * counted as read_after_close.
+   */
+  void setReadGate(CountDownLatch gate, long offset) {
+    readGateOffset = offset;
+    readGate = gate;
+  }
+
+  /* without layout xattrs a file's pool can only be had through an fd */
+  void setLayoutXattrs(boolean enabled) {
+    layoutXattrs = enabled;
+  }
+
+  /* the next count reads of a layout xattr fail with an I/O error */
+  void failLayoutXattrs(int count) {
+    layoutXattrFailures.set(count);
+  }
+
+  /** Number of calls made, of any kind. */
+  long getTotalOpCount() {
+    long total = 0;
+    for (AtomicLong count : ops.values())
+      total += count.get();
+    return total;
+  }
+
+  long getOpCount(String op) {
+    AtomicLong count = ops.get(op);
+    return count == null ? 0 : count.get();
+  }
+
+  void resetOpCounts() {
+    ops.clear();
+    maxInflight.set(0);
+  }
+
+  int getMaxInflight() {
+    return maxInflight.get();
+  }
+
+  int getOpenHandles() {
+    return handles.size();
+  }
+
+  /**
+   * Create a file with the given contents, bypassing the counters.
+   */
+  void putFile(String path, byte[] contents) {
+    Node node = new Node(false, 0644);
+    node.data = Arrays.copyOf(contents, contents.length);
+    node.size = contents.length;
+    nodes.put(path, node);
+  }
+
+  byte[] getFile(String path) {
+    Node node = nodes.get(path);
+    synchronized (node) {
+      return Arrays.copyOf(node.data, (int)node.size);
+    }
+  }
+
+  private void count(String op) {
+    AtomicLong count = ops.get(op);
+    if (count == null) {
+      ops.putIfAbsent(op, new AtomicLong());
+      count = ops.get(op);
+    }
+    count.incrementAndGet();
+  }
+
+  private void beginIO() {
+    int n = inflight.incrementAndGet();
+    int max;
+    do {
+      max = maxInflight.get();
+    } while (n > max && !maxInflight.compareAndSet(max, n));
+    sleep(ioLatencyMillis);
+  }
+
+  private static void sleep(long latency) {
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void endIO() {
+    inflight.decrementAndGet();
+  }
+
+  private String pathString(Path path) {
+    if (null == path)
+      return "/";
+    return path.toUri().getPath();
+  }
+
+  private Node lookup(String path) throws FileNotFoundException {
+    Node node = nodes.get(path);
+    if (node == null)
+      throw new FileNotFoundException(path);
+    return node;
+  }
+
+  private Handle handle(int fd) throws IOException {
+    Handle h = handles.get(fd);
+    if (h == null)
+      throw new IOException("bad file descriptor " + fd);
+    return h;
+  }
+
+  private void fill(Node node, CephStat stat) {
+    synchronized (node) {
+      stat.mode = node.mode | (node.dir ? S_IFDIR : S_IFREG);
+      stat.size = node.size;
+      stat.blksize = stripeUnit;
+      stat.m_time = node.mtime;
+      stat.a_time = node.mtime;
+      setType(stat, "is_file", !node.dir);
+      setType(stat, "is_directory", node.dir);
+    }
+  }
+
+  /* libcephfs fills in the file type flags of CephStat natively */
+  private static void setType(CephStat stat, String field, boolean value) {
+    try {
+      java.lang.reflect.Field f = CephStat.class.getDeclaredField(field);
+      f.setAccessible(true);
+      f.setBoolean(stat, value);
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  void initialize(URI uri, Configuration conf) throws IOException {
+    count("initialize");
+  }
+
+  int __open(Path path, int flags, int mode) throws IOException {
+    count("open");
+    String p = pathString(path);
+    Node node = nodes.get(p);
+    if (node == null) {
+      if ((flags & CephMount.O_CREAT) == 0)
+        throw new FileNotFoundException(p);
+      Path parent = new Path(p).getParent();
+      if (parent != null && !lookup(pathString(parent)).dir)
+        throw new IOException("not a directory: " + parent);
+      node = new Node(false, mode);
+      nodes.put(p, node);
+    } else if ((flags & CephMount.O_TRUNC) != 0) {
+      synchronized (node) {
+        node.data = new byte[0];
+        node.size = 0;
+        node.mtime = System.currentTimeMillis();
+      }
+    }
+    Handle h = new Handle(p, node, flags);
+    if ((flags & CephMount.O_APPEND) != 0) {
+      synchronized (node) {
+        h.pos = node.size;
+      }
+    }
+    int fd = nextFd.getAndIncrement();
+    handles.put(fd, h);
+    return fd;
+  }
+
+  int open(Path path, int flags, int mode) throws IOException {
+    int fd = __open(path, flags, mode);
+    if (handle(fd).node.dir) {
+      close(fd);
+      throw new FileNotFoundException();
+    }
+    return fd;
+  }
+
+  int open(Path path, int flags, int mode, int stripe_unit,
+      int stripe_count, int object_size, String data_pool) throws IOException {
+    return open(path, flags, mode);
+  }
+
+  void fstat(int fd, CephStat stat) throws IOException {
+    count("fstat");
+    fill(handle(fd).node, stat);
+  }
+
+  void lstat(Path path, CephStat stat) throws IOException {
+    count("lstat");
+    fill(lookup(pathString(path)), stat);
+  }
+
+  void statfs(Path path, CephStatVFS stat) throws IOException {
+    count("statfs");
+  }
+
+  void unlink(Path path) throws IOException {
+    count("unlink");
+    if (nodes.remove(pathString(path)) == null)
+      throw new FileNotFoundException(pathString(path));
+  }
+
+  void rmdir(Path path) throws IOException {
+    count("rmdir");
+    if (nodes.remove(pathString(path)) == null)
+      throw new FileNotFoundException(pathString(path));
+  }
+
+  String[] listdir(Path path) throws IOException {
+    count("listdir");
+    String p = pathString(path);
+    Node node = nodes.get(p);
+    if (node == null || !node.dir)
+      return null;
+    String prefix = p.endsWith("/") ? p : p + "/";
+    ArrayList<String> names = new ArrayList<String>();
+    for (String name : nodes.keySet()) {
+      if (name.startsWith(prefix) && name.length() > prefix.length() &&
+          name.indexOf('/', prefix.length()) < 0)
+        names.add(name.substring(prefix.length()));
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  void setattr(Path path, CephStat stat, int mask) throws IOException {
+    count("setattr");
+    Node node = lookup(pathString(path));
+    synchronized (node) {
+      if ((mask & CephMount.SETATTR_MTIME) != 0)
+        node.mtime = stat.m_time;
+    }
+  }
+
+  void chmod(Path path, int mode) throws IOException {
+    count("chmod");
+    Node node = lookup(pathString(path));
+    synchronized (node) {
+      node.mode = mode;
+    }
+  }
+
+  long lseek(int fd, long offset, int whence) throws IOException {
+    count("lseek");
+    Handle h = handle(fd);
+    synchronized (h) {
+      if (whence == CephMount.SEEK_SET)
+        h.pos = offset;
+      else if (whence == CephMount.SEEK_CUR)
+        h.pos += offset;
+      else
+        h.pos = h.node.size + offset;
+      return h.pos;
+    }
+  }
+
+  void close(int fd) throws IOException {
+    count("close");
+    if (handles.remove(fd) == null)
+      throw new IOException("bad file descriptor " + fd);
+  }
+
+  void shutdown() throws IOException {
+    count("shutdown");
+  }
+
+  void rename(Path src, Path dst) throws IOException {
+    count("rename");
+    Node node = nodes.remove(pathString(src));
+    if (node == null)
+      throw new FileNotFoundException(pathString(src));
+    nodes.put(pathString(dst), node);
+  }
+
+  short getDefaultReplication() {
+    return CephConfigKeys.CEPH_REPLICATION_DEFAULT;
+  }
+
+  short get_file_replication(Path path) throws IOException {
+    CephStat stat = new CephStat();
+    lstat(path, stat);
+    if (stat.isFile()) {
+      int fd = open(path, CephMount.O_RDONLY, 0);
+      count("get_file_replication");
+      close(fd);
+    }
+    return getDefaultReplication();
+  }
+
+  /*
+   * Objects are stripe unit sized; libcephfs sends one OSD op per object
+   * a write touches.
+   */
+  private void countOsdWrites(long pos, long size) {
+    if (size <= 0)
+      return;
+    long objects = (pos + size - 1) / stripeUnit - pos / stripeUnit + 1;
+    for (long i = 0; i < objects; i++)
+      count("osd_write");
+  }
+
+  int write(int fd, byte[] buf, long size, long offset) throws IOException {
+    count("write");
+    Handle h = handle(fd);
+    beginIO();
+    try {
+      if (offset >= 0) {
+        copyIn(h.node, buf, size, offset);
+        countOsdWrites(offset, size);
+        return (int)size;
+      }
+      synchronized (h) {
+        long pos = h.pos;
+        if ((h.flags & CephMount.O_APPEND) != 0) {
+          synchronized (h.node) {
+            pos = h.node.size;
+          }
+        }
+        copyIn(h.node, buf, size, pos);
+        countOsdWrites(pos, size);
+        h.pos = pos + size;
+      }
+      return (int)size;
+    } finally {
+      endIO();
+    }
+  }
+
+  /* a write that is not in place is counted as write_staged */
+  int write(int fd, ByteBuffer buf, long offset, CephBufferPool pool)
+      throws IOException {
+    if (!buf.hasArray() || buf.arrayOffset() + buf.position() != 0)
+      count("write_staged");
+    return super.write(fd, buf, offset, pool);
+  }
+
+  private void copyIn(Node node, byte[] buf, long size, long pos) {
+    synchronized (node) {
+      long end = pos + size;
+      if (end > node.data.length)
+        node.data = Arrays.copyOf(node.data,
+            (int)Math.max(end, 2L * node.data.length));
+      System.arraycopy(buf, 0, node.data, (int)pos, (int)size);
+      node.size = Math.max(node.size, end);
+      node.mtime = System.currentTimeMillis();
+    }
+  }
+
+  /*
+   * Like libcephfs-jni, a read into the middle of an array is staged
+   * through a temporary array, and counted as read_staged.
+   */
+  int read(int fd, byte[] buf, int bufOffset, long size, long offset) throws IOException {
+    if (bufOffset == 0)
+      return read(fd, buf, size, offset);
+
+    count("read_staged");
+    byte[] tmp = new byte[(int)size];
+    int ret = read(fd, tmp, size, offset);
+    if (ret > 0)
+      System.arraycopy(tmp, 0, buf, bufOffset, ret);
+    return ret;
+  }
+
+  int read(int fd, byte[] buf, long size, long offset) throws IOException {
+    count("read");
+    Handle h = handle(fd);
+    beginIO();
+    try {
+      CountDownLatch gate = readGate;
+      if (gate != null && offset >= readGateOffset) {
+        count("read_blocked");
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (handles.get(fd) != h)
+          count("read_after_close");
+      }
+      if (offset >= 0)
+        return copyOut(h.node, buf, size, offset);
+      synchronized (h) {
+        int ret = copyOut(h.node, buf, size, h.pos);
+        h.pos += ret;
+        return ret;
+      }
+    } finally {
+      endIO();
+    }
+  }
+
+  private int copyOut(Node node, byte[] buf, long size, long pos) {
+    synchronized (node) {
+      if (pos >= node.size)
+        return 0;
+      int n = (int)Math.min(size, node.size - pos);
+      System.arraycopy(node.data, (int)pos, buf, 0, n);
+      return n;
+    }
+  }
+
+  void mkdirs(Path path, int mode) throws IOException {
+    count("mkdirs");
+    String p = pathString(path);
+    Node node = nodes.get(p);
+    if (node != null) {
+      if (!node.dir)
+        throw new IOException("not a directory: " + p);
+      throw new CephFileAlreadyExistsException();
+    }
+    Path parent = new Path(p).getParent();
+    if (parent != null && !nodes.containsKey(pathString(parent)))
+      mkdirs(parent, mode);
+    nodes.put(p, new Node(true, mode));
+  }
+
+  int get_stripe_unit_granularity() {
+    return stripeUnit;
+  }
+
+  int get_file_stripe_unit(int fd) throws IOException {
+    handle(fd);
+    return stripeUnit;
+  }
+
+  String get_file_pool_name(int fd) {
+    return "data";
+  }
+
+  String get_file_pool_name(Path path) throws IOException {
+    count("getxattr");
+    lookup(pathString(path));
+    for (int n; (n = layoutXattrFailures.get()) > 0; ) {
+      if (layoutXattrFailures.compareAndSet(n, n - 1))
+        throw new IOException("Connection timed out");
+    }
+    return layoutXattrs ? "data" : null;
+  }
+
+  int get_pool_id(String pool_name) throws IOException {
+    if (!"data".equals(pool_name))
+      throw new IOException();
+    return 0;
+  }
+
+  int get_pool_replication(int poolid) throws IOException {
+    return getDefaultReplication();
+  }
+
+  InetAddress get_osd_address(int osd) throws IOException {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  Bucket[] get_osd_crush_location(int osd) throws IOException {
+    return new Bucket[0];
+  }
+
+  /*
+   * CephFileExtent has no public constructor, so extents are built
+   * reflectively. Objects are stripe unit sized and, as in libcephfs, the
+   * extent runs from offset to the end of its object.
+   */
+  CephFileExtent get_file_extent(int fd, long offset) throws IOException {
+    count("get_file_extent");
+    long length = stripeUnit - (offset % stripeUnit);
+    try {
+      java.lang.reflect.Constructor<CephFileExtent> ctor =
+        CephFileExtent.class.getDeclaredConstructor(
+            long.class, long.class, int[].class);
+      ctor.setAccessible(true);
+      return ctor.newInstance(offset, length, new int[] { 0 });
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  void fsync(int fd) throws IOException {
+    count("fsync");
+    handle(fd);
+    sleep(syncLatencyMillis);
+  }
+
+  void sync_fs() throws IOException {
+    count("sync_fs");
+    sleep(syncLatencyMillis);
+  }
+
+  /* like setxattr in CephFS, attributes do not change the mtime */
+  byte[] lgetxattr(Path path, String name) throws IOException {
+    count("getxattr");
+    Node node = lookup(pathString(path));
+    synchronized (node) {
+      byte[] value = node.xattrs.get(name);
+      return value == null ? null : Arrays.copyOf(value, value.length);
+    }
+  }
+
+  void lsetxattr(Path path, String name, byte[] value) throws IOException {
+    count("setxattr");
+    Node node = lookup(pathString(path));
+    synchronized (node) {
+      node.xattrs.put(name, Arrays.copyOf(value, value.length));
+    }
+  }
+}
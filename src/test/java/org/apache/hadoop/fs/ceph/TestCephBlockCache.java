@@ -0,0 +1,200 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for the shared block cache.
+ */
+public class TestCephBlockCache {
+  private CephFileSystem fs;
+
+  @After
+  public void teardown() throws Exception {
+    if (fs != null)
+      fs.close();
+  }
+
+  private static byte[] block(int size, int seed) {
+    byte[] b = new byte[size];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  private void checkLru(boolean offHeap) {
+    CephBlockCache cache = new CephBlockCache(3 * 4096, 4096, offHeap);
+    CephBlockCache.CachedFile f = cache.open("/f", 1, 5 * 4096);
+    byte[] dst = new byte[4096];
+
+    assertEquals(-1, f.get(0, dst));
+    for (int i = 0; i < 3; i++)
+      f.put(i, block(4096, i), 4096);
+    assertEquals(4096, f.get(0, dst));
+    assertArrayEquals(block(4096, 0), dst);
+
+    /* block 1 is now the least recently used */
+    f.put(3, block(4096, 3), 4096);
+    assertEquals(-1, f.get(1, dst));
+    assertEquals(4096, f.get(0, dst));
+    assertEquals(4096, f.get(3, dst));
+    assertArrayEquals(block(4096, 3), dst);
+
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(3 * 4096, cache.getCachedBytes());
+  }
+
+  @Test
+  public void testLruEviction() {
+    checkLru(false);
+  }
+
+  @Test
+  public void testOffHeapLruEviction() {
+    checkLru(true);
+  }
+
+  @Test
+  public void testVersionInvalidation() {
+    CephBlockCache cache = new CephBlockCache(1 << 20, 4096, false);
+    CephBlockCache.CachedFile v1 = cache.open("/f", 1, 8192);
+    v1.put(0, block(4096, 0), 4096);
+    v1.put(1, block(4096, 1), 4096);
+    cache.open("/g", 1, 4096).put(0, block(4096, 2), 4096);
+
+    /* same version: still cached */
+    assertEquals(4096, cache.open("/f", 1, 8192).get(0, new byte[4096]));
+
+    /* new mtime: old blocks are dropped and not readmitted */
+    CephBlockCache.CachedFile v2 = cache.open("/f", 2, 8192);
+    assertEquals(2, cache.getInvalidations());
+    assertEquals(-1, v2.get(0, new byte[4096]));
+    v1.put(0, block(4096, 0), 4096);
+    assertEquals(-1, v2.get(0, new byte[4096]));
+    assertEquals(1, cache.getBlockCount());
+  }
+
+  @Test
+  public void testStreamsShareCachedBlocks() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY, 65536);
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+
+    byte[] contents = block(300000, 42);
+    ceph.putFile("/hot", contents);
+    ceph.resetOpCounts();
+
+    for (int i = 0; i < 5; i++) {
+      FSDataInputStream in = fs.open(new Path("/hot"), 4096);
+      byte[] buf = new byte[contents.length];
+      in.readFully(0, buf);
+      in.seek(100);
+      int n = 0;
+      int ret;
+      while ((ret = in.read(buf, n, Math.min(5000, buf.length - n))) > 0)
+        n += ret;
+      assertEquals(contents.length - 100, n);
+      assertArrayEquals(Arrays.copyOfRange(contents, 100, contents.length),
+          Arrays.copyOf(buf, n));
+      in.close();
+    }
+
+    /* 5 blocks read once, positional reads bypass the cache */
+    CephBlockCache cache = fs.getBlockCache();
+    assertEquals(5, cache.getMisses());
+    assertEquals(20, cache.getHits());
+    assertEquals(5 + 5, ceph.getOpCount("read"));
+
+    /* rewriting the file is picked up by the next open */
+    byte[] changed = block(1000, 7);
+    ceph.putFile("/hot", changed);
+    FSDataInputStream in = fs.open(new Path("/hot"), 4096);
+    byte[] buf = new byte[changed.length];
+    assertEquals(changed.length, in.read(buf, 0, buf.length));
+    assertArrayEquals(changed, buf);
+    in.close();
+    assertEquals(5, cache.getInvalidations());
+  }
+
+  @Test
+  public void testAppendInvalidates() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY, 65536);
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    byte[] contents = block(100000, 42);
+    ceph.putFile("/log", contents);
+
+    FSDataInputStream in = fs.open(new Path("/log"), 4096);
+    in.readFully(new byte[contents.length]);
+    in.close();
+    assertEquals(2, fs.getBlockCache().getBlockCount());
+
+    /* dropped as soon as the file is opened for append */
+    FSDataOutputStream out = fs.append(new Path("/log"), 4096, null);
+    assertEquals(0, fs.getBlockCache().getBlockCount());
+    out.write(block(10, 7));
+    out.close();
+  }
+
+  @Test
+  public void testDropBehindDoesNotFillCache() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY, 65536);
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    byte[] contents = block(300000, 42);
+    ceph.putFile("/scan", contents);
+
+    FSDataInputStream in = fs.open(new Path("/scan"), 4096);
+    in.setDropBehind(true);
+    byte[] buf = new byte[1000];
+    for (int i = 0; i < 200; i++)
+      in.readFully(buf);
+    assertArrayEquals(Arrays.copyOfRange(contents, 199000, 200000), buf);
+    in.close();
+    assertEquals(0, fs.getBlockCache().getBlockCount());
+
+    /* blocks already cached are still served */
+    in = fs.open(new Path("/scan"), 4096);
+    in.readFully(buf);
+    in.close();
+    in = fs.open(new Path("/scan"), 4096);
+    in.setDropBehind(true);
+    in.readFully(buf);
+    in.close();
+    assertEquals(1, fs.getBlockCache().getHits());
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Unit tests for the shared I/O buffer pool.
+ */
+public class TestCephBufferPool {
+
+  @Test
+  public void testSizeClasses() {
+    assertEquals(4096, CephBufferPool.classSize(1));
+    assertEquals(4096, CephBufferPool.classSize(4096));
+    assertEquals(8192, CephBufferPool.classSize(4097));
+    assertEquals(1 << 21, CephBufferPool.classSize(1 << 21));
+    assertEquals(1 << 22, CephBufferPool.classSize((1 << 21) + 1));
+  }
+
+  @Test
+  public void testReuseAndCounters() {
+    CephBufferPool pool = new CephBufferPool(1 << 22);
+    byte[] a = pool.acquire(1 << 21);
+    assertEquals(1 << 21, pool.getOutstandingBytes());
+    pool.release(a);
+    assertEquals(0, pool.getOutstandingBytes());
+    assertEquals(1 << 21, pool.getPooledBytes());
+
+    byte[] b = pool.acquire(1500000);
+    assertSame(a, b);
+    assertEquals(1, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    pool.release(b);
+  }
+
+  @Test
+  public void testCapacityBound() {
+    CephBufferPool pool = new CephBufferPool(1 << 21);
+    byte[] a = pool.acquire(1 << 21);
+    byte[] b = pool.acquire(1 << 21);
+    pool.release(a);
+    pool.release(b);
+    assertEquals(1 << 21, pool.getPooledBytes());
+    assertEquals(0, pool.getOutstandingBytes());
+
+    CephBufferPool disabled = new CephBufferPool(0);
+    disabled.release(disabled.acquire(4096));
+    assertEquals(0, disabled.getPooledBytes());
+  }
+
+  @Test
+  public void testStreamsShareBuffers() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.putFile("/f", new byte[300]);
+    Configuration conf = new Configuration(false);
+    CephBufferPool pool = new CephBufferPool(64 << 20);
+
+    for (int i = 0; i < 100; i++) {
+      int fd = ceph.open(new Path("/f"), CephMount.O_RDONLY, 0);
+      CephInputStream in = new CephInputStream(conf, ceph, fd, 300, 4096,
+          null, pool, null, null);
+      in.read(new byte[300], 0, 300);
+      in.close();
+
+      fd = ceph.open(new Path("/g"), CephMount.O_WRONLY|CephMount.O_CREAT, 0644);
+      CephOutputStream out = new CephOutputStream(conf, ceph, fd, 4096,
+          null, pool, null, null, null, null);
+      out.write(new byte[300], 0, 300);
+      out.close();
+    }
+
+    assertEquals(0, pool.getOutstandingBytes());
+    assertEquals(1, pool.getMisses());
+    assertEquals(199, pool.getHits());
+  }
+
+  /**
+   * A reader interrupted while its prefetch read is in flight must not
+   * give the buffer being read into back to the pool.
+   */
+  @Test
+  public void testInterruptedPrefetchKeepsBuffer() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    ceph.putFile("/f", new byte[1 << 20]);
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY, 1);
+    CephBufferPool pool = new CephBufferPool(64 << 20);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    CountDownLatch gate = new CountDownLatch(1);
+    ceph.setReadGate(gate, 0);
+    try {
+      int fd = ceph.open(new Path("/f"), CephMount.O_RDONLY, 0);
+      final CephInputStream in = new CephInputStream(conf, ceph, fd,
+          1 << 20, 4096, executor, pool, null, null);
+      final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+      Thread reader = new Thread() {
+        public void run() {
+          try {
+            in.read();
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      reader.start();
+      while (ceph.getOpCount("read_blocked") == 0)
+        Thread.sleep(1);
+      reader.interrupt();
+      reader.join();
+      assertTrue(failure.get() instanceof InterruptedIOException);
+
+      /* the read still owns its buffer */
+      assertEquals(0, pool.getPooledBytes());
+      assertEquals(256 * 1024, pool.getOutstandingBytes());
+
+      gate.countDown();
+      in.close();
+      assertEquals(0, pool.getOutstandingBytes());
+      assertEquals(256 * 1024, pool.getPooledBytes());
+    } finally {
+      ceph.setReadGate(null, 0);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testPrefetchAfterExecutorShutdown() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    byte[] contents = new byte[1 << 20];
+    new Random(1).nextBytes(contents);
+    ceph.putFile("/f", contents);
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    CephBufferPool pool = new CephBufferPool(64 << 20);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    executor.shutdownNow();
+
+    int fd = ceph.open(new Path("/f"), CephMount.O_RDONLY, 0);
+    CephInputStream in = new CephInputStream(conf, ceph, fd, contents.length,
+        4096, executor, pool, null, null);
+    byte[] buf = new byte[contents.length];
+    in.readFully(0, buf);
+    in.seek(0);
+    int off = 0;
+    int ret;
+    while ((ret = in.read(buf, off, buf.length - off)) > 0)
+      off += ret;
+    assertArrayEquals(contents, buf);
+    in.close();
+    assertEquals(0, pool.getOutstandingBytes());
+  }
+}
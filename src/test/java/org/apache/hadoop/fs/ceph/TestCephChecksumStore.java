@@ -0,0 +1,217 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Unit tests for composite CRC file checksums.
+ */
+public class TestCephChecksumStore {
+  private CephMemoryTalker ceph;
+  private Configuration conf;
+  private CephFileSystem fs;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_CHECKSUM_ENABLED_KEY, true);
+    conf.setLong(CephConfigKeys.CEPH_CHECKSUM_CHUNK_SIZE_KEY, 256 * 1024);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    if (fs != null)
+      fs.close();
+  }
+
+  private void startFs() throws Exception {
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+  }
+
+  private static byte[] data(int size, int seed) {
+    byte[] b = new byte[size];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  private static int crc32c(byte[] b, int off, int len) {
+    PureJavaCrc32C crc = new PureJavaCrc32C();
+    crc.update(b, off, len);
+    return (int) crc.getValue();
+  }
+
+  private static FileChecksum expected(byte[] contents) {
+    return new CephCompositeCrcFileChecksum(
+        crc32c(contents, 0, contents.length));
+  }
+
+  @Test
+  public void testCompose() {
+    byte[] b = data(100000, 1);
+    int whole = crc32c(b, 0, b.length);
+    for (int split : new int[] { 0, 1, 7, 4096, 65537, 99999, 100000 }) {
+      int a = crc32c(b, 0, split);
+      int c = crc32c(b, split, b.length - split);
+      assertEquals(whole,
+          CephCompositeCrcFileChecksum.compose(a, c, b.length - split));
+    }
+
+    /* the standard CRC32C check value, big-endian as HDFS reports it */
+    byte[] check = "123456789".getBytes();
+    CephCompositeCrcFileChecksum sum =
+      new CephCompositeCrcFileChecksum(crc32c(check, 0, check.length));
+    assertEquals("COMPOSITE-CRC32C", sum.getAlgorithmName());
+    assertTrue(Arrays.equals(new byte[] {
+          (byte) 0xe3, (byte) 0x06, (byte) 0x92, (byte) 0x83 },
+          sum.getBytes()));
+  }
+
+  @Test
+  public void testStoredOnWrite() throws Exception {
+    startFs();
+    byte[] contents = data(700000, 2);
+    Path p = new Path("/written");
+
+    FSDataOutputStream out = fs.create(p);
+    out.write(contents[0]);
+    out.write(contents, 1, 99999);
+    ByteBuffer direct = ByteBuffer.allocateDirect(600000);
+    direct.put(contents, 100000, 600000);
+    direct.flip();
+    ((WritableByteChannel) out.getWrappedStream()).write(direct);
+    out.close();
+
+    ceph.resetOpCounts();
+    assertEquals(expected(contents), fs.getFileChecksum(p));
+    assertEquals(0, ceph.getOpCount("read"));
+    assertEquals(0, ceph.getOpCount("open"));
+    assertEquals(1, fs.getChecksumStore().getStored());
+    assertEquals(1, fs.getChecksumStore().getStoredHits());
+
+    /* an append carries on from the stored checksum */
+    byte[] more = data(5000, 3);
+    out = fs.append(p);
+    out.write(more);
+    out.close();
+    byte[] all = Arrays.copyOf(contents, contents.length + more.length);
+    System.arraycopy(more, 0, all, contents.length, more.length);
+    assertEquals(expected(all), fs.getFileChecksum(p));
+    assertEquals(0, ceph.getOpCount("read"));
+    assertEquals(0, fs.getChecksumStore().getComputed());
+  }
+
+  @Test
+  public void testComputedWhenNotStored() throws Exception {
+    ceph.setIoLatency(2);
+    startFs();
+    byte[] contents = data(3 * 1024 * 1024 + 17, 4);
+    ceph.putFile("/imported", contents);
+    Path p = new Path("/imported");
+
+    ceph.resetOpCounts();
+    assertEquals(expected(contents), fs.getFileChecksum(p));
+    CephChecksumStore store = fs.getChecksumStore();
+    assertEquals(1, store.getComputed());
+    assertEquals(contents.length, store.getBytesRead());
+    assertTrue(ceph.getMaxInflight() > 1);
+    assertEquals(0, ceph.getOpenHandles());
+
+    /* cached while the file is unchanged */
+    long reads = ceph.getOpCount("read");
+    assertEquals(expected(contents), fs.getFileChecksum(p));
+    assertEquals(reads, ceph.getOpCount("read"));
+    assertEquals(1, store.getCacheHits());
+
+    /* a change made behind our back is noticed */
+    int fd = ceph.open(p, CephMount.O_WRONLY | CephMount.O_APPEND, 0);
+    ceph.write(fd, new byte[] { 1, 2, 3 }, 3, -1);
+    ceph.close(fd);
+    byte[] all = Arrays.copyOf(contents, contents.length + 3);
+    all[contents.length] = 1;
+    all[contents.length + 1] = 2;
+    all[contents.length + 2] = 3;
+    assertEquals(expected(all), fs.getFileChecksum(p));
+    assertEquals(2, store.getComputed());
+
+    /* as is a file rewritten without the checksum kept up to date */
+    FSDataOutputStream out = fs.create(new Path("/stale"));
+    out.write(contents, 0, 1000);
+    out.close();
+    fd = ceph.open(new Path("/stale"), CephMount.O_WRONLY, 0);
+    ceph.write(fd, new byte[] { 9 }, 1, 1000);
+    ceph.close(fd);
+    all = Arrays.copyOf(contents, 1001);
+    all[1000] = 9;
+    assertEquals(expected(all), fs.getFileChecksum(new Path("/stale")));
+    assertEquals(3, store.getComputed());
+
+    /* empty files and directories */
+    ceph.putFile("/empty", new byte[0]);
+    assertEquals(new CephCompositeCrcFileChecksum(0),
+        fs.getFileChecksum(new Path("/empty")));
+    fs.mkdirs(new Path("/dir"));
+    assertNull(fs.getFileChecksum(new Path("/dir")));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_CHECKSUM_ENABLED_KEY, false);
+    startFs();
+    FSDataOutputStream out = fs.create(new Path("/f"));
+    out.write(data(1000, 5));
+    out.close();
+    assertNull(fs.getChecksumStore());
+    assertNull(fs.getFileChecksum(new Path("/f")));
+    assertEquals(0, ceph.getOpCount("setxattr"));
+  }
+
+  @Test
+  public void testChecksumWritable() throws Exception {
+    CephCompositeCrcFileChecksum sum = new CephCompositeCrcFileChecksum(0x1234abcd);
+    org.apache.hadoop.io.DataOutputBuffer out =
+      new org.apache.hadoop.io.DataOutputBuffer();
+    sum.write(out);
+    org.apache.hadoop.io.DataInputBuffer in =
+      new org.apache.hadoop.io.DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    CephCompositeCrcFileChecksum read = new CephCompositeCrcFileChecksum();
+    read.readFields(in);
+    assertNotNull(read);
+    assertEquals(sum, read);
+    assertEquals(sum.hashCode(), read.hashCode());
+  }
+}
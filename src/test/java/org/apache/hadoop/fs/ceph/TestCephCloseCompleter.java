@@ -0,0 +1,137 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of async output stream close.
+ */
+public class TestCephCloseCompleter {
+  private CephMemoryTalker ceph;
+  private Configuration conf;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    conf = new Configuration(false);
+  }
+
+  private CephFileSystem startFs() throws Exception {
+    CephFileSystem fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    return fs;
+  }
+
+  private static byte[] part(int i) {
+    return ("part " + i + "\n").getBytes();
+  }
+
+  private void writeParts(CephFileSystem fs, int parts, int maxPending)
+      throws IOException {
+    for (int i = 0; i < parts; i++) {
+      FSDataOutputStream out = fs.create(new Path("/out/part-" + i));
+      out.write(part(i));
+      out.close();
+      /* a handle per outstanding close, plus none left over */
+      assertTrue(ceph.getOpenHandles() <= maxPending);
+    }
+    fs.awaitAsyncCloses();
+  }
+
+  /**
+   * A task writing many small part files, paying a sync per file on its
+   * own thread and then in the background. The async-close benchmark in
+   * {@link CephBenchmark} times both.
+   */
+  @Test
+  public void testManySmallFiles() throws Exception {
+    final int parts = 200;
+    conf.setInt(CephConfigKeys.CEPH_CLOSE_ASYNC_MAX_PENDING_KEY, 16);
+
+    CephFileSystem fs = startFs();
+    writeParts(fs, parts, 0);
+    fs.close();
+
+    ceph.setSyncLatency(3);
+    conf.setBoolean(CephConfigKeys.CEPH_CLOSE_ASYNC_ENABLED_KEY, true);
+    fs = startFs();
+    ceph.resetOpCounts();
+    writeParts(fs, parts, 16);
+    assertEquals(parts, ceph.getOpCount("fsync"));
+    assertEquals(parts, fs.getCloseCompleter().getCompleted());
+    assertEquals(0, ceph.getOpenHandles());
+    assertEquals(0, fs.getStreamRegistry().getOpenFds());
+    for (int i = 0; i < parts; i++)
+      assertArrayEquals(part(i), ceph.getFile("/out/part-" + i));
+    fs.close();
+  }
+
+  @Test
+  public void testFailuresSurface() throws Exception {
+    final AtomicInteger syncs = new AtomicInteger();
+    ceph = new CephMemoryTalker() {
+      @Override
+      void fsync(int fd) throws IOException {
+        if (syncs.incrementAndGet() % 3 == 0)
+          throw new IOException("injected failure");
+        super.fsync(fd);
+      }
+    };
+    conf.setBoolean(CephConfigKeys.CEPH_CLOSE_ASYNC_ENABLED_KEY, true);
+    CephFileSystem fs = startFs();
+
+    for (int i = 0; i < 6; i++) {
+      FSDataOutputStream out = fs.create(new Path("/f" + i));
+      out.write(part(i));
+      out.close();
+    }
+    try {
+      fs.awaitAsyncCloses();
+      fail("async close failures were not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("2 async closes failed"));
+      assertTrue(e.getCause().getMessage().contains("injected failure"));
+    }
+    assertEquals(2, fs.getCloseCompleter().getFailed());
+    assertEquals(0, ceph.getOpenHandles());
+
+    /* reported once; a later failure is reported by FileSystem.close */
+    fs.awaitAsyncCloses();
+    for (int i = 0; i < 3; i++) {
+      FSDataOutputStream out = fs.create(new Path("/g" + i));
+      out.close();
+    }
+    try {
+      fs.close();
+      fail("async close failure was not reported on close");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("injected failure"));
+    }
+    assertEquals(0, ceph.getOpenHandles());
+  }
+}
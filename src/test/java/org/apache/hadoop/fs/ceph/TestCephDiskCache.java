@@ -0,0 +1,231 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the local disk tier of the block cache.
+ */
+public class TestCephDiskCache {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static byte[] block(int size, int seed) {
+    byte[] b = new byte[size];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  private static CephBlockCache.Key key(String path, long mtime, long block) {
+    return new CephBlockCache.Key(path, mtime, 3 * 4096, block);
+  }
+
+  @Test
+  public void testEvictionAndRecovery() throws Exception {
+    File dir = tmp.newFolder("cache");
+    CephDiskCache disk = new CephDiskCache(dir, 3 * 4096);
+    disk.open("/f", 1, 3 * 4096);
+    for (int i = 0; i < 4; i++)
+      disk.put(key("/f", 1, i), block(4096, i), 4096);
+    assertEquals(1, disk.getEvictions());
+    assertEquals(3, disk.getBlockCount());
+    disk.close();
+
+    /* a new process sees the same blocks */
+    disk = new CephDiskCache(dir, 3 * 4096);
+    assertEquals(3, disk.getBlockCount());
+    assertEquals(3 * 4096, disk.getCachedBytes());
+    byte[] dst = new byte[4096];
+    assertEquals(-1, disk.get(key("/f", 1, 0), dst));
+    for (int i = 1; i < 4; i++) {
+      assertEquals(4096, disk.get(key("/f", 1, i), dst));
+      assertArrayEquals(block(4096, i), dst);
+    }
+
+    /* a different version of the file drops them */
+    disk.open("/f", 2, 3 * 4096);
+    assertEquals(-1, disk.get(key("/f", 1, 1), dst));
+    assertEquals(0, disk.getBlockCount());
+    disk.close();
+
+    disk = new CephDiskCache(dir, 3 * 4096);
+    assertEquals(0, disk.getBlockCount());
+    assertEquals(2, dir.list().length);
+    disk.close();
+  }
+
+  @Test
+  public void testDamagedBlockDropped() throws Exception {
+    File dir = tmp.newFolder("cache");
+    CephDiskCache disk = new CephDiskCache(dir, 1 << 20);
+    disk.open("/f", 1, 3 * 4096);
+    disk.put(key("/f", 1, 0), block(4096, 0), 4096);
+    disk.put(key("/f", 1, 1), block(4096, 1), 4096);
+    disk.close();
+
+    for (File f : dir.listFiles()) {
+      if (f.getName().startsWith("blk_0")) {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(100);
+        raf.close();
+      }
+    }
+    new File(dir, "blk_99").createNewFile();
+
+    disk = new CephDiskCache(dir, 1 << 20);
+    assertEquals(1, disk.getBlockCount());
+    assertEquals(-1, disk.get(key("/f", 1, 0), new byte[4096]));
+    assertEquals(4096, disk.get(key("/f", 1, 1), new byte[4096]));
+    assertEquals(false, new File(dir, "blk_99").exists());
+    disk.close();
+  }
+
+  @Test
+  public void testZeroedBlockDropped() throws Exception {
+    File dir = tmp.newFolder("cache");
+    CephDiskCache disk = new CephDiskCache(dir, 1 << 20);
+    disk.open("/f", 1, 3 * 4096);
+    disk.put(key("/f", 1, 0), block(4096, 0), 4096);
+    disk.put(key("/f", 1, 1), block(4096, 1), 4096);
+    disk.close();
+
+    /* what an unsynced block can look like after a power loss */
+    RandomAccessFile raf = new RandomAccessFile(new File(dir, "blk_0"), "rw");
+    raf.write(new byte[4096]);
+    raf.close();
+
+    disk = new CephDiskCache(dir, 1 << 20);
+    assertEquals(2, disk.getBlockCount());
+    byte[] dst = new byte[4096];
+    assertEquals(-1, disk.get(key("/f", 1, 0), dst));
+    assertEquals(1, disk.getBlockCount());
+    assertEquals(4096, disk.get(key("/f", 1, 1), dst));
+    assertArrayEquals(block(4096, 1), dst);
+    disk.close();
+  }
+
+  @Test
+  public void testJournalCompactedWhileOpen() throws Exception {
+    File dir = tmp.newFolder("cache");
+    CephDiskCache disk = new CephDiskCache(dir, 4 * 1024);
+    disk.open("/f", 1, 3 * 4096);
+    /* each put past the first four evicts a block */
+    for (int i = 0; i < 1000; i++)
+      disk.put(key("/f", 1, i), block(1024, i), 1024);
+    assertEquals(4, disk.getBlockCount());
+    assertEquals(996, disk.getEvictions());
+    disk.close();
+
+    int records = 0;
+    BufferedReader in = new BufferedReader(new FileReader(
+          new File(dir, "journal")));
+    while (in.readLine() != null)
+      records++;
+    in.close();
+    assertTrue("journal has " + records + " records",
+        records <= 2 * CephDiskCache.JOURNAL_COMPACT_MIN);
+
+    disk = new CephDiskCache(dir, 4 * 1024);
+    byte[] dst = new byte[1024];
+    for (int i = 996; i < 1000; i++) {
+      assertEquals(1024, disk.get(key("/f", 1, i), dst));
+      assertArrayEquals(block(1024, i), dst);
+    }
+    disk.close();
+  }
+
+  @Test
+  public void testDirectoryLocked() throws Exception {
+    File dir = tmp.newFolder("cache");
+    CephDiskCache disk = new CephDiskCache(dir, 1 << 20);
+    try {
+      new CephDiskCache(dir, 1 << 20);
+      fail("second cache opened a locked directory");
+    } catch (IOException e) {
+      // expected
+    }
+    disk.close();
+  }
+
+  @Test
+  public void testSurvivesFileSystemRestart() throws Exception {
+    CephMemoryTalker ceph = new CephMemoryTalker();
+    byte[] contents = block(300000, 42);
+    ceph.putFile("/hot", contents);
+
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY, true);
+    conf.setLong(CephConfigKeys.CEPH_BLOCK_CACHE_SIZE_KEY, 0);
+    conf.setInt(CephConfigKeys.CEPH_BLOCK_CACHE_BLOCK_SIZE_KEY, 65536);
+    conf.set(CephConfigKeys.CEPH_DISK_CACHE_DIR_KEY,
+        tmp.newFolder("cache").getPath());
+
+    for (int round = 0; round < 2; round++) {
+      CephFileSystem fs = new CephFileSystem(conf, ceph);
+      fs.initialize(URI.create("ceph://localhost/"), conf);
+      ceph.resetOpCounts();
+
+      FSDataInputStream in = fs.open(new Path("/hot"), 4096);
+      byte[] buf = new byte[contents.length];
+      int n = 0;
+      int ret;
+      while ((ret = in.read(buf, n, buf.length - n)) > 0)
+        n += ret;
+      in.close();
+      assertArrayEquals(contents, buf);
+
+      CephDiskCache disk = fs.getBlockCache().getDiskCache();
+      if (round == 0) {
+        assertEquals(5, ceph.getOpCount("read"));
+        assertEquals(5, disk.getBlockCount());
+      } else {
+        assertEquals(0, ceph.getOpCount("read"));
+        assertEquals(5, disk.getHits());
+      }
+      fs.close();
+    }
+  }
+
+  @Test
+  public void testUnusableDirectory() throws Exception {
+    File file = tmp.newFile("not-a-dir");
+    Configuration conf = new Configuration(false);
+    conf.setBoolean(CephConfigKeys.CEPH_BLOCK_CACHE_ENABLED_KEY, true);
+    conf.set(CephConfigKeys.CEPH_DISK_CACHE_DIR_KEY, file.getPath());
+    CephFileSystem fs = new CephFileSystem(conf, new CephMemoryTalker());
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    assertNull(fs.getBlockCache().getDiskCache());
+    fs.close();
+  }
+}
@@ -0,0 +1,339 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of CephFileSystem running on the in-memory CephFsProto.
+ */
+public class TestCephFileSystem {
+  private CephMemoryTalker ceph;
+  private Configuration conf;
+  private CephFileSystem fs;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    conf = new Configuration(false);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    if (fs != null)
+      fs.close();
+  }
+
+  private void startFs() throws Exception {
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+  }
+
+  /**
+   * Open 10k concurrent streams on a small file and check the buffer cost
+   * per stream. Every stream used to pin a 2 MiB buffer. The heap cost is
+   * measured by the stream-memory benchmark in {@link CephBenchmark}.
+   */
+  @Test
+  public void testSmallFileStreamMemory() throws Exception {
+    final int streams = 10000;
+    conf.setLong(CephConfigKeys.CEPH_BUFFER_POOL_SIZE_KEY, 0);
+    startFs();
+    ceph.putFile("/small", new byte[300]);
+
+    FSDataInputStream[] open = new FSDataInputStream[streams];
+    for (int i = 0; i < streams; i++) {
+      open[i] = fs.open(new Path("/small"), 4096);
+      open[i].read();
+    }
+
+    long bufferPerStream = fs.getBufferPool().getOutstandingBytes() / streams;
+    assertTrue(bufferPerStream <= CephBufferPool.MIN_CLASS_SIZE);
+
+    for (FSDataInputStream in : open)
+      in.close();
+    assertEquals(0, fs.getBufferPool().getOutstandingBytes());
+  }
+
+  @Test
+  public void testBufferSizeCapAndGranularity() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_BUFFER_SIZE_MAX_KEY, 1 << 20);
+    ceph.setStripeUnit(65536);
+    startFs();
+    byte[] data = new byte[8 << 20];
+    ceph.putFile("/big", data);
+
+    /* requests are rounded up to the stripe unit granularity */
+    FSDataInputStream in = fs.open(new Path("/big"), 4096);
+    in.read();
+    assertEquals(65536, fs.getBufferPool().getOutstandingBytes());
+    in.close();
+
+    /* and capped by ceph.buffer.size.max */
+    in = fs.open(new Path("/big"), 64 << 20);
+    in.read();
+    assertEquals(1 << 20, fs.getBufferPool().getOutstandingBytes());
+    in.close();
+  }
+
+  /**
+   * A read waiting on background I/O that close() drops from the executor
+   * fails instead of hanging.
+   */
+  @Test(timeout = 10000)
+  public void testCloseFailsDroppedReads() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_IO_THREADS_KEY, 1);
+    conf.setLong(CephConfigKeys.CEPH_IO_SHUTDOWN_TIMEOUT_KEY, 100);
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY, 3);
+    startFs();
+    ceph.putFile("/big", new byte[1 << 20]);
+
+    /* the second chunk holds the only I/O thread, the third is queued */
+    CountDownLatch gate = new CountDownLatch(1);
+    ceph.setReadGate(gate, 256 * 1024);
+    FSDataInputStream in = fs.open(new Path("/big"), 4096);
+    try {
+      in.read(new byte[10]);
+      while (ceph.getOpCount("read_blocked") == 0)
+        Thread.sleep(1);
+
+      fs.close();
+      fs = null;
+      gate.countDown();
+      try {
+        in.readFully(new byte[512 * 1024]);
+        fail("read of a dropped prefetch succeeded");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("cancelled"));
+      }
+    } finally {
+      ceph.setReadGate(null, 0);
+      gate.countDown();
+      in.close();
+    }
+  }
+
+  /**
+   * Output streams keep ceph.buffer.size.max buffers whatever bufferSize
+   * the caller asks for, so small writes are still batched.
+   */
+  @Test
+  public void testOutputBufferSize() throws Exception {
+    startFs();
+    int defaultSize = conf.getInt(CephConfigKeys.IO_FILE_BUFFER_SIZE_KEY,
+        CephConfigKeys.IO_FILE_BUFFER_SIZE_DEFAULT);
+    FSDataOutputStream out = fs.create(new Path("/out"), true, defaultSize);
+    assertEquals(CephConfigKeys.CEPH_BUFFER_SIZE_MAX_DEFAULT,
+        fs.getBufferPool().getOutstandingBytes());
+
+    ceph.resetOpCounts();
+    byte[] record = new byte[100];
+    for (int i = 0; i < 10000; i++)
+      out.write(record);
+    assertEquals(0, ceph.getOpCount("write"));
+    out.close();
+    assertEquals(1, ceph.getOpCount("write"));
+
+    out = fs.append(new Path("/out"), 4096);
+    assertEquals(CephConfigKeys.CEPH_BUFFER_SIZE_MAX_DEFAULT,
+        fs.getBufferPool().getOutstandingBytes());
+    out.close();
+  }
+
+  private void checkUnbuffer(int streams) throws Exception {
+    byte[] data = new byte[200000];
+    new java.util.Random(1).nextBytes(data);
+    ceph.putFile("/idle", data);
+
+    FSDataInputStream[] open = new FSDataInputStream[streams];
+    for (int i = 0; i < streams; i++) {
+      open[i] = fs.open(new Path("/idle"), 65536);
+      open[i].seek(i);
+      open[i].read();
+    }
+    CephStreamRegistry registry = fs.getStreamRegistry();
+    assertEquals(streams, registry.getBufferedInputStreams());
+
+    for (FSDataInputStream in : open)
+      ((CephInputStream) in.getWrappedStream()).unbuffer();
+    /* abandoned prefetch reads hand their buffers back when they finish */
+    for (int i = 0; i < 100 && fs.getBufferPool().getOutstandingBytes() > 0; i++)
+      Thread.sleep(10);
+    assertEquals(0, fs.getBufferPool().getOutstandingBytes());
+    assertEquals(streams, registry.getUnbufferedInputStreams());
+    assertEquals(0, registry.getBufferedInputStreams());
+    assertEquals(streams, ceph.getOpenHandles());
+
+    /* the next read picks up where the stream left off */
+    for (int i = 0; i < streams; i++) {
+      assertEquals(i + 1, open[i].getPos());
+      assertEquals(data[i + 1] & 0xff, open[i].read());
+      if (i % 2 == 0)
+        ((CephInputStream) open[i].getWrappedStream()).unbuffer();
+    }
+    assertEquals(streams / 2, registry.getUnbufferedInputStreams());
+
+    for (FSDataInputStream in : open)
+      in.close();
+    assertEquals(0, registry.getOpenInputStreams());
+    assertEquals(0, registry.getUnbufferedInputStreams());
+    assertEquals(0, ceph.getOpenHandles());
+  }
+
+  @Test
+  public void testUnbuffer() throws Exception {
+    startFs();
+    checkUnbuffer(100);
+  }
+
+  @Test
+  public void testUnbufferPrefetching() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 65536);
+    startFs();
+    checkUnbuffer(20);
+  }
+
+  /* the streams are returned so a GC cannot reap them before wanted */
+  private List<Object> leakStreams(int inputs, int outputs)
+      throws Exception {
+    List<Object> streams = new ArrayList<Object>();
+    for (int i = 0; i < inputs; i++) {
+      FSDataInputStream in = fs.open(new Path("/leak"), 4096);
+      in.read();
+      streams.add(in);
+    }
+    for (int i = 0; i < outputs; i++) {
+      FSDataOutputStream out = fs.create(new Path("/leak-out-" + i));
+      out.write(1);
+      streams.add(out);
+    }
+    return streams;
+  }
+
+  private void checkLeakedStreamsClosed(boolean leakDetection)
+      throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_STREAM_LEAK_DETECTION_KEY,
+        leakDetection);
+    startFs();
+    ceph.putFile("/leak", new byte[1000]);
+    CephStreamRegistry registry = fs.getStreamRegistry();
+    assertEquals(leakDetection, registry.isLeakDetectionEnabled());
+
+    FSDataInputStream kept = fs.open(new Path("/leak"), 4096);
+    List<Object> leaked = leakStreams(10, 5);
+    assertEquals(16, registry.getOpenFds());
+    assertEquals(11, registry.getOpenInputStreams());
+    assertEquals(5, registry.getOpenOutputStreams());
+    assertEquals(15, leaked.size());
+    leaked = null;
+
+    for (int i = 0; i < 100 && registry.getLeakedStreams() < 15; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(15, registry.getLeakedStreams());
+    for (int i = 0; i < 100 && ceph.getOpenHandles() > 1; i++)
+      Thread.sleep(10);
+    assertEquals(1, ceph.getOpenHandles());
+    assertEquals(1, registry.getOpenFds());
+    assertEquals(0, registry.getOpenOutputStreams());
+
+    kept.close();
+    assertEquals(0, registry.getOpenFds());
+    assertEquals(0, ceph.getOpenHandles());
+    assertEquals(15, registry.getLeakedStreams());
+  }
+
+  @Test
+  public void testLeakedStreamsClosed() throws Exception {
+    checkLeakedStreamsClosed(false);
+  }
+
+  @Test
+  public void testLeakDetection() throws Exception {
+    checkLeakedStreamsClosed(true);
+  }
+
+  /*
+   * Calls into libcephfs per FileStatus of a listing of files.
+   */
+  private double opsPerStat(int files) throws Exception {
+    ceph.resetOpCounts();
+    FileStatus[] listing = fs.listStatus(new Path("/dir"));
+    assertEquals(files, listing.length);
+    for (FileStatus status : listing)
+      assertEquals(CephConfigKeys.CEPH_REPLICATION_DEFAULT,
+          status.getReplication());
+    /* the directory's own stat and listing */
+    return (double) (ceph.getTotalOpCount() - 2) / files;
+  }
+
+  /**
+   * Count the metadata round trips per getFileStatus. Getting replication
+   * used to cost a second lstat and an open and close of every file.
+   */
+  @Test
+  public void testFileStatusMetadataOps() throws Exception {
+    final int files = 500;
+    startFs();
+    for (int i = 0; i < files; i++)
+      ceph.putFile("/dir/f" + i, new byte[10]);
+    fs.mkdirs(new Path("/dir"));
+
+    double viaLayout = opsPerStat(files);
+    assertEquals(0, ceph.getOpCount("open"));
+    assertEquals(files, ceph.getOpCount("lstat") - 1);
+
+    /* a failed read of the xattr only costs that file an open */
+    ceph.failLayoutXattrs(1);
+    ceph.resetOpCounts();
+    fs.getFileStatus(new Path("/dir/f0"));
+    fs.getFileStatus(new Path("/dir/f1"));
+    assertEquals(1, ceph.getOpCount("open"));
+    assertEquals(2, ceph.getOpCount("getxattr"));
+
+    /* a client without layout xattrs is only asked once */
+    ceph.setLayoutXattrs(false);
+    fs.close();
+    startFs();
+    double viaOpen = opsPerStat(files) - 1.0 / files;
+    assertEquals(files, ceph.getOpCount("open"));
+
+    assertEquals(5.0, viaOpen, 0.0);
+    assertEquals(2.0, viaLayout, 0.0);
+
+    FileStatus dir = fs.getFileStatus(new Path("/dir"));
+    assertEquals(1, dir.getReplication());
+  }
+}
@@ -0,0 +1,734 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Unit tests for CephInputStream against the in-memory CephFsProto.
+ */
+public class TestCephInputStream {
+  private static final String FILE = "/file";
+  private static final int FILE_SIZE = 3 * 1024 * 1024 + 17;
+
+  private CephMemoryTalker ceph;
+  private Configuration conf;
+  private byte[] contents;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    conf = new Configuration(false);
+    contents = new byte[FILE_SIZE];
+    new Random(42).nextBytes(contents);
+    ceph.putFile(FILE, contents);
+  }
+
+  private CephInputStream openStream() throws Exception {
+    int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+    return new CephInputStream(conf, ceph, fd, contents.length, 4096);
+  }
+
+  @Test
+  public void testSequentialRead() throws Exception {
+    CephInputStream in = openStream();
+    byte[] buf = new byte[contents.length];
+    int off = 0;
+    int ret;
+    while ((ret = in.read(buf, off, Math.min(100000, buf.length - off))) > 0)
+      off += ret;
+    assertEquals(contents.length, off);
+    assertArrayEquals(contents, buf);
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  /**
+   * A sequential reader that skips short gaps reads them through, but the
+   * buffer, gap included, stays within ceph.buffer.size.max. Fixed size
+   * windows are not shortened to end on object boundaries, so a fill
+   * after a gap would otherwise need more than the window.
+   */
+  @Test
+  public void testReadBufferStaysWithinMax() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_READAHEAD_MIN_KEY, 1 << 20);
+    conf.setInt(CephConfigKeys.CEPH_READAHEAD_MAX_KEY, 16 << 20);
+    conf.setInt(CephConfigKeys.CEPH_BUFFER_SIZE_MAX_KEY, 1 << 20);
+    CephBufferPool pool = new CephBufferPool(0);
+    int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+    CephInputStream in = new CephInputStream(conf, ceph, fd,
+        contents.length, 4096, null, pool, null, null);
+
+    byte[] buf = new byte[1000];
+    long pos = 0;
+    while (pos + buf.length <= contents.length) {
+      in.seek(pos);
+      int off = 0;
+      while (off < buf.length)
+        off += in.read(buf, off, buf.length - off);
+      assertArrayEquals(Arrays.copyOfRange(contents, (int) pos,
+            (int) pos + buf.length), buf);
+      assertTrue(pool.getOutstandingBytes() <= 1 << 20);
+      pos += buf.length + 3000;
+    }
+    assertEquals(CephReadaheadPolicy.Pattern.SEQUENTIAL, in.getReadPattern());
+    assertTrue(in.getBufferSeeks() > 0);
+    in.close();
+  }
+
+  @Test
+  public void testPositionedReadLeavesStreamPosition() throws Exception {
+    CephInputStream in = openStream();
+    byte[] head = new byte[10];
+    in.read(head, 0, head.length);
+    assertEquals(10, in.getPos());
+
+    byte[] buf = new byte[100];
+    in.readFully(2000000, buf, 20, 50);
+    assertArrayEquals(Arrays.copyOfRange(contents, 2000000, 2000050),
+        Arrays.copyOfRange(buf, 20, 70));
+    assertEquals(10, in.getPos());
+
+    /* sequential reads continue where they left off */
+    assertEquals(contents[10] & 0xff, in.read());
+
+    /* reads past the end are short or return EOF */
+    assertEquals(17, in.read(contents.length - 17, buf, 0, 100));
+    assertEquals(-1, in.read(contents.length, buf, 0, 100));
+    try {
+      in.readFully(contents.length - 10, buf, 0, 20);
+      fail("expected EOFException");
+    } catch (EOFException e) {
+    }
+    in.close();
+  }
+
+  private void checkByteBufferRead(ByteBuffer buf) throws Exception {
+    CephInputStream in = openStream();
+    byte[] head = new byte[5];
+    in.read(head, 0, head.length);
+
+    /* small reads go through the read buffer */
+    buf.limit(100);
+    assertEquals(100, in.read(buf));
+    assertEquals(105, in.getPos());
+
+    /* large reads drain the buffer, then bypass it */
+    buf.limit(buf.capacity());
+    while (buf.hasRemaining() && in.read(buf) > 0)
+      ;
+    assertEquals(contents.length, in.getPos());
+    assertEquals(-1, in.read(ByteBuffer.allocate(1)));
+
+    buf.flip();
+    byte[] got = new byte[buf.remaining()];
+    buf.get(got);
+    assertArrayEquals(Arrays.copyOfRange(contents, 5, contents.length), got);
+    in.close();
+  }
+
+  @Test
+  public void testHeapByteBufferRead() throws Exception {
+    checkByteBufferRead(ByteBuffer.allocate(contents.length - 5));
+  }
+
+  @Test
+  public void testDirectByteBufferRead() throws Exception {
+    checkByteBufferRead(ByteBuffer.allocateDirect(contents.length - 5));
+  }
+
+  /**
+   * A large read into a direct buffer is staged through one pooled
+   * buffer, a bounded piece at a time.
+   */
+  @Test
+  public void testDirectByteBufferReadIsStaged() throws Exception {
+    CephBufferPool pool = new CephBufferPool(16 << 20);
+    int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+    CephInputStream in = new CephInputStream(conf, ceph, fd,
+        contents.length, 4096, null, pool, null, null);
+    ceph.resetOpCounts();
+    long misses = pool.getMisses();
+    long outstanding = pool.getOutstandingBytes();
+
+    ByteBuffer buf = ByteBuffer.allocateDirect(contents.length);
+    assertEquals(contents.length, in.read(buf));
+    assertEquals(4, ceph.getOpCount("read"));
+    assertEquals(misses + 1, pool.getMisses());
+    assertEquals(outstanding, pool.getOutstandingBytes());
+
+    buf.flip();
+    byte[] got = new byte[contents.length];
+    buf.get(got);
+    assertArrayEquals(contents, got);
+    in.close();
+  }
+
+  /**
+   * A ByteBuffer read that bypasses the read buffer drops the buffered
+   * window, so a seek back into the bypassed range reads the file again.
+   */
+  @Test
+  public void testSeekBackAfterByteBufferBypass() throws Exception {
+    CephInputStream in = openStream();
+    byte[] head = new byte[10];
+    in.read(head, 0, head.length);
+
+    /* the first read drains the buffer, the rest bypass it */
+    ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+    while (buf.hasRemaining() && in.read(buf) > 0)
+      ;
+    long pos = 10 + buf.capacity();
+    assertEquals(pos, in.getPos());
+
+    in.seek(pos - 100);
+    byte[] got = new byte[100];
+    int off = 0;
+    while (off < got.length)
+      off += in.read(got, off, got.length - off);
+    assertArrayEquals(Arrays.copyOfRange(contents, (int) pos - 100,
+          (int) pos), got);
+    in.close();
+  }
+
+  @Test
+  public void testRandomReadsShrinkReadahead() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_READAHEAD_MIN_KEY, 16 * 1024);
+    CephInputStream in = openStream();
+    byte[] buf = new byte[1000];
+    Random rand = new Random(7);
+    for (int i = 0; i < 20; i++) {
+      int pos = rand.nextInt(contents.length - buf.length);
+      in.seek(pos);
+      assertEquals(buf.length, in.read(buf, 0, buf.length));
+      assertArrayEquals(Arrays.copyOfRange(contents, pos, pos + buf.length), buf);
+    }
+    assertEquals(CephReadaheadPolicy.Pattern.RANDOM, in.getReadPattern());
+    assertEquals(20 * buf.length, in.getBytesConsumed());
+    /* only the first fill uses the full initial window */
+    assertTrue(in.getBytesReadAhead() < (1 << 21) + 19 * 2 * 16 * 1024);
+    in.close();
+  }
+
+  private void checkReadAt(CephInputStream in, long pos, int len)
+    throws Exception {
+    byte[] buf = new byte[len];
+    assertEquals(len, in.read(buf, 0, len));
+    assertArrayEquals(Arrays.copyOfRange(contents, (int)pos, (int)pos + len), buf);
+    assertEquals(pos + len, in.getPos());
+  }
+
+  @Test
+  public void testLazySeek() throws Exception {
+    CephInputStream in = openStream();
+    checkReadAt(in, 0, 100);
+    ceph.resetOpCounts();
+
+    /* backwards and forwards inside the buffer */
+    in.seek(10);
+    checkReadAt(in, 10, 50);
+    in.seek(1000);
+    checkReadAt(in, 1000, 50);
+    assertEquals(0, ceph.getOpCount("lseek"));
+    assertEquals(0, ceph.getOpCount("read"));
+
+    /* a short skip past the buffer reads through the gap */
+    long end = in.getBytesReadAhead();
+    in.seek(end + 1000);
+    checkReadAt(in, end + 1000, 50);
+    assertEquals(0, ceph.getOpCount("lseek"));
+    assertEquals(3, in.getBufferSeeks());
+
+    /* repeated seeks only cost one lseek, at the next read */
+    in.seek(2000000);
+    in.seek(100);
+    in.seek(3000000);
+    assertEquals(0, ceph.getOpCount("lseek"));
+    checkReadAt(in, 3000000, 50);
+    assertEquals(1, ceph.getOpCount("lseek"));
+    assertEquals(1, in.getRealSeeks());
+
+    try {
+      in.seek(-1);
+      fail("expected EOFException");
+    } catch (EOFException e) {
+    }
+    in.close();
+  }
+
+  @Test
+  public void testPrefetchSequentialAndSeek() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY, 3);
+    ceph.setIoLatency(2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+      CephInputStream in = new CephInputStream(conf, ceph, fd,
+          contents.length, 4096, executor, null, null, null);
+
+      byte[] buf = new byte[contents.length];
+      int off = 0;
+      int ret;
+      while ((ret = in.read(buf, off, Math.min(10000, buf.length - off))) > 0)
+        off += ret;
+      assertArrayEquals(contents, buf);
+      assertTrue("prefetch reads did not overlap", ceph.getMaxInflight() > 1);
+      assertEquals(0, ceph.getOpCount("lseek"));
+
+      /* backwards, inside a chunk, and far forward */
+      long[] targets = { 17, 300000, 300100, 2900000, 5 };
+      byte[] small = new byte[5000];
+      for (long target : targets) {
+        in.seek(target);
+        int n = in.read(small, 0, small.length);
+        assertArrayEquals(Arrays.copyOfRange(contents, (int)target,
+              (int)target + n), Arrays.copyOf(small, n));
+        assertEquals(target + n, in.getPos());
+      }
+      in.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /*
+   * Close the stream while reads it started on the executor are blocked in
+   * libcephfs. close() must wait for them before closing the file handle.
+   */
+  private void checkCloseWaitsForReads(boolean prefetch) throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, prefetch);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY, 3);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+      final CephInputStream in = new CephInputStream(conf, ceph, fd,
+          contents.length, 4096, executor, null, null, null);
+
+      /* the first chunk arrives, the ones prefetched after it hang */
+      CountDownLatch gate = new CountDownLatch(1);
+      ceph.setReadGate(gate, prefetch ? 256 * 1024 : 0);
+      if (prefetch) {
+        in.read(new byte[10], 0, 10);
+      } else {
+        List<CephFileRange> ranges = new ArrayList<CephFileRange>();
+        ranges.add(new CephFileRange(0, 100));
+        ranges.add(new CephFileRange(2000000, 100));
+        in.readVectored(ranges);
+      }
+      while (ceph.getOpCount("read_blocked") == 0)
+        Thread.sleep(1);
+
+      final CountDownLatch closed = new CountDownLatch(1);
+      Thread closer = new Thread() {
+        public void run() {
+          try {
+            in.close();
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          closed.countDown();
+        }
+      };
+      closer.start();
+      assertFalse("close did not wait for a blocked read",
+          closed.await(100, TimeUnit.MILLISECONDS));
+      assertEquals(1, ceph.getOpenHandles());
+
+      gate.countDown();
+      closer.join();
+      assertEquals(0, ceph.getOpenHandles());
+      assertEquals(0, ceph.getOpCount("read_after_close"));
+    } finally {
+      ceph.setReadGate(null, 0);
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForVectoredReads() throws Exception {
+    checkCloseWaitsForReads(false);
+  }
+
+  @Test
+  public void testCloseWaitsForPrefetch() throws Exception {
+    checkCloseWaitsForReads(true);
+  }
+
+  @Test
+  public void testCloseWaitsForPositionalReads() throws Exception {
+    int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+    final CephInputStream in = new CephInputStream(conf, ceph, fd,
+        contents.length, 4096);
+    CountDownLatch gate = new CountDownLatch(1);
+    ceph.setReadGate(gate, 0);
+    try {
+      final byte[] buf = new byte[100];
+      Thread reader = new Thread() {
+        public void run() {
+          try {
+            in.readFully(1000, buf);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      reader.start();
+      while (ceph.getOpCount("read_blocked") == 0)
+        Thread.sleep(1);
+
+      final CountDownLatch closed = new CountDownLatch(1);
+      Thread closer = new Thread() {
+        public void run() {
+          try {
+            in.close();
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          closed.countDown();
+        }
+      };
+      closer.start();
+      assertFalse("close did not wait for a positional read",
+          closed.await(100, TimeUnit.MILLISECONDS));
+      assertEquals(1, ceph.getOpenHandles());
+
+      gate.countDown();
+      reader.join();
+      closer.join();
+      assertArrayEquals(Arrays.copyOfRange(contents, 1000, 1100), buf);
+      assertEquals(0, ceph.getOpenHandles());
+      assertEquals(0, ceph.getOpCount("read_after_close"));
+
+      try {
+        in.read(0, buf, 0, 1);
+        fail("positional read after close succeeded");
+      } catch (IOException e) {
+        // expected
+      }
+    } finally {
+      ceph.setReadGate(null, 0);
+    }
+  }
+
+  @Test
+  public void testVectoredRead() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_VECTORED_READ_MERGE_GAP_KEY, 4096);
+    conf.setInt(CephConfigKeys.CEPH_VECTORED_READ_MERGE_MAX_KEY, 1 << 20);
+    ceph.setIoLatency(20);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+      CephInputStream in = new CephInputStream(conf, ceph, fd,
+          contents.length, 4096, executor, null, null, null);
+      ceph.resetOpCounts();
+
+      /* 3 clusters of nearby ranges, given out of order, plus one past EOF */
+      List<CephFileRange> ranges = new ArrayList<CephFileRange>();
+      ranges.add(new CephFileRange(2000000, 100));
+      ranges.add(new CephFileRange(10, 100));
+      ranges.add(new CephFileRange(1000, 2000));
+      ranges.add(new CephFileRange(1000000, 5000));
+      ranges.add(new CephFileRange(1006000, 10));
+      ranges.add(new CephFileRange(1000, 10));
+      ranges.add(new CephFileRange(contents.length - 10, 20));
+
+      in.readVectored(ranges);
+      for (int i = 0; i < ranges.size() - 1; i++) {
+        CephFileRange range = ranges.get(i);
+        java.nio.ByteBuffer data = range.getData().get();
+        assertEquals(range.getLength(), data.remaining());
+        byte[] got = new byte[data.remaining()];
+        data.get(got);
+        int off = (int) range.getOffset();
+        assertArrayEquals(Arrays.copyOfRange(contents, off, off + got.length),
+            got);
+      }
+
+      try {
+        ranges.get(ranges.size() - 1).getData().get();
+        fail("expected EOFException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof EOFException);
+      }
+
+      /* one read per cluster, issued in parallel */
+      assertEquals(3, ceph.getOpCount("read"));
+      assertTrue(ceph.getMaxInflight() > 1);
+      assertEquals(0, in.getPos());
+      in.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * A failed prefetch must not leave the stream reading a chunk buffer it
+   * already gave back to the pool, here taken and scribbled over by
+   * another user of the pool.
+   */
+  @Test
+  public void testPrefetchFailureDropsBufferWindow() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_PREFETCH_ENABLED_KEY, true);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_CHUNK_SIZE_KEY, 256 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_PREFETCH_DEPTH_KEY, 1);
+    CephMemoryTalker failing = new CephMemoryTalker() {
+      @Override
+      int read(int fd, byte[] buf, long size, long offset) throws IOException {
+        if (offset >= 256 * 1024)
+          throw new IOException("injected failure");
+        return super.read(fd, buf, size, offset);
+      }
+    };
+    failing.putFile(FILE, contents);
+    CephBufferPool pool = new CephBufferPool(64 << 20);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      int fd = failing.open(new Path(FILE), CephMount.O_RDONLY, 0);
+      CephInputStream in = new CephInputStream(conf, failing, fd,
+          contents.length, 4096, executor, pool, null, null);
+
+      byte[] buf = new byte[256 * 1024];
+      int off = 0;
+      while (off < buf.length)
+        off += in.read(buf, off, buf.length - off);
+      try {
+        in.read();
+        fail("failed prefetch was not reported");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("injected failure"));
+      }
+      Arrays.fill(pool.acquire(256 * 1024), (byte) 0x5a);
+
+      /* back into the first chunk, which is fetched again */
+      in.seek(1000);
+      byte[] small = new byte[100];
+      assertEquals(small.length, in.read(small, 0, small.length));
+      assertArrayEquals(Arrays.copyOfRange(contents, 1000, 1100), small);
+      in.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads at least as large as the buffer bypass it. Those into the middle
+   * of the caller's array are staged in a pooled buffer rather than by
+   * Ceph, whose binding only fills arrays from index 0. The
+   * large-read-bypass benchmark in {@link CephBenchmark} times the same
+   * reads through a buffer that stages everything.
+   */
+  @Test
+  public void testLargeReadBypass() throws Exception {
+    CephInputStream in = openStream();
+    byte[] buf = new byte[contents.length];
+    assertEquals(10, in.read(buf, 0, 10));
+    long staged = in.getBytesReadAhead();
+    ceph.resetOpCounts();
+
+    /* drains the buffered readahead, then one direct read */
+    int n = in.read(buf, 10, 1 << 20);
+    assertEquals(1 << 20, n);
+    assertEquals(1, ceph.getOpCount("read"));
+    assertEquals(0, ceph.getOpCount("read_staged"));
+    assertEquals(staged, in.getBytesReadAhead());
+    assertEquals(10 + n, in.getPos());
+
+    int off = 10 + n;
+    int ret;
+    while ((ret = in.read(buf, off, Math.min(1 << 20, buf.length - off))) > 0)
+      off += ret;
+    assertArrayEquals(contents, buf);
+    assertEquals(contents.length, in.getPos());
+    assertEquals(-1, in.read(buf, 0, 1 << 20));
+    assertEquals(-1, in.read());
+
+    /* seeking back into the file still works after direct reads */
+    in.seek(5);
+    assertEquals(contents[5] & 0xff, in.read());
+    in.close();
+
+    int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+    in = new CephInputStream(conf, ceph, fd, contents.length, 64 * 1024);
+    off = 0;
+    while ((ret = in.read(buf, off, Math.min(1 << 20, buf.length - off))) > 0)
+      off += ret;
+    assertArrayEquals(contents, buf);
+    /* only the last, short read is staged */
+    assertEquals(contents.length % (1 << 20), in.getBytesReadAhead());
+    in.close();
+  }
+
+  @Test
+  public void testSetReadahead() throws Exception {
+    FSDataInputStream in = new FSDataInputStream(openStream());
+    CephInputStream cin = (CephInputStream) in.getWrappedStream();
+    in.setReadahead(0L);
+    byte[] buf = new byte[1000];
+    for (int i = 0; i < 100; i++)
+      in.readFully(buf);
+    assertArrayEquals(Arrays.copyOfRange(contents, 99000, 100000), buf);
+    /* nothing was read that the caller did not ask for */
+    assertEquals(cin.getBytesConsumed(), cin.getBytesReadAhead());
+
+    in.setReadahead(null);
+    in.readFully(buf);
+    assertTrue(cin.getBytesReadAhead() > cin.getBytesConsumed());
+
+    try {
+      in.setReadahead(-1L);
+      fail("negative readahead accepted");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    in.close();
+  }
+
+  @Test
+  public void testStripedRead() throws Exception {
+    conf.setInt(CephConfigKeys.CEPH_STRIPED_READ_THRESHOLD_KEY, 1 << 20);
+    conf.setInt(CephConfigKeys.CEPH_STRIPED_READ_PIECE_MIN_KEY, 128 * 1024);
+    conf.setInt(CephConfigKeys.CEPH_STRIPED_READ_DEPTH_KEY, 4);
+    ceph.setStripeUnit(65536);
+    ceph.setIoLatency(5);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      int fd = ceph.open(new Path(FILE), CephMount.O_RDONLY, 0);
+      CephInputStream in = new CephInputStream(conf, ceph, fd,
+          contents.length, 4096, executor, null, null, null);
+
+      /* a buffered read, then one large read split into object pieces */
+      byte[] buf = new byte[contents.length];
+      assertEquals(100, in.read(buf, 0, 100));
+      ceph.resetOpCounts();
+      assertEquals(contents.length - 100,
+          in.read(buf, 100, contents.length - 100));
+      assertArrayEquals(contents, buf);
+      assertEquals(contents.length, in.getPos());
+      assertEquals(-1, in.read(buf, 0, 1));
+
+      /*
+       * The first fill buffered the first 64K object; the other 48 objects
+       * are read as pieces of two.
+       */
+      int objects = (contents.length + 65535) / 65536;
+      assertEquals((objects - 1) / 2, ceph.getOpCount("read"));
+      /* pieces into the middle of buf are staged by the stream, not Ceph */
+      assertEquals(0, ceph.getOpCount("read_staged"));
+      assertTrue("pieces were not read concurrently",
+          ceph.getMaxInflight() > 1);
+      assertTrue(ceph.getMaxInflight() <= 4);
+
+      /* positional reads split the same way and leave the position */
+      ceph.resetOpCounts();
+      byte[] pbuf = new byte[2 << 20];
+      in.readFully(12345, pbuf);
+      assertArrayEquals(Arrays.copyOfRange(contents, 12345,
+            12345 + pbuf.length), pbuf);
+      assertTrue(ceph.getOpCount("read") > 1);
+      assertEquals(0, ceph.getOpCount("read_staged"));
+      assertEquals(contents.length, in.getPos());
+
+      /* the stream keeps reading normally after a seek back */
+      in.seek(10);
+      assertEquals(contents[10] & 0xff, in.read());
+      in.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Many threads issuing positional reads on one shared stream must see
+   * correct data and must actually overlap their I/O rather than serialize
+   * on the stream lock.
+   */
+  @Test
+  public void testConcurrentPositionedReads() throws Exception {
+    final CephInputStream in = openStream();
+    final int threads = 8;
+    final int readsPerThread = 20;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    ceph.setIoLatency(5);
+    ceph.resetOpCounts();
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      workers[t] = new Thread() {
+        public void run() {
+          Random rand = new Random(seed);
+          byte[] buf = new byte[8192];
+          try {
+            for (int i = 0; i < readsPerThread; i++) {
+              int pos = rand.nextInt(contents.length - buf.length);
+              in.readFully(pos, buf, 0, buf.length);
+              assertArrayEquals(
+                  Arrays.copyOfRange(contents, pos, pos + buf.length), buf);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+    }
+
+    long start = System.nanoTime();
+    for (Thread t : workers)
+      t.start();
+    for (Thread t : workers)
+      t.join();
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+
+    assertEquals(threads * readsPerThread, ceph.getOpCount("read"));
+    assertTrue("positional reads were serialized",
+        ceph.getMaxInflight() > 1);
+    /* fully serialized would take threads * readsPerThread * 5ms */
+    assertTrue("took " + elapsedMillis + "ms",
+        elapsedMillis < threads * readsPerThread * 5);
+    in.close();
+  }
+}
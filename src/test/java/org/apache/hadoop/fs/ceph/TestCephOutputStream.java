@@ -0,0 +1,486 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Unit tests for CephOutputStream against the in-memory CephFsProto.
+ */
+public class TestCephOutputStream {
+  private static final String FILE = "/file";
+
+  private CephMemoryTalker ceph;
+  private Configuration conf;
+  private ExecutorService executor;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    conf = new Configuration(false);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  private static byte[] data(int size, int seed) {
+    byte[] b = new byte[size];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  private CephOutputStream createStream(CephMemoryTalker ceph, int flags)
+      throws Exception {
+    int fd = ceph.open(new Path(FILE),
+        CephMount.O_WRONLY|CephMount.O_CREAT|flags, 0644);
+    return new CephOutputStream(conf, ceph, fd, 65536, executor, null, null,
+        null, null, null);
+  }
+
+  /* write in irregular pieces, checking the in-flight bound as we go */
+  private static void writePieces(CephOutputStream out, byte[] data,
+      long maxInflight) throws IOException {
+    Random r = new Random(1);
+    int off = 0;
+    while (off < data.length) {
+      int len = Math.min(data.length - off, r.nextInt(100000));
+      out.write(data, off, len);
+      off += len;
+      assertTrue(out.getInflightBytes() <= maxInflight);
+    }
+  }
+
+  @Test
+  public void testWriteBehindOrdering() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+    conf.setLong(CephConfigKeys.CEPH_WRITE_BEHIND_INFLIGHT_MAX_KEY, 3 * 65536);
+    ceph.setIoLatency(1);
+
+    byte[] contents = data(5 * 1024 * 1024 + 17, 42);
+    CephOutputStream out = createStream(ceph, CephMount.O_TRUNC);
+    writePieces(out, contents, 3 * 65536);
+    assertEquals(contents.length, out.getPos());
+    out.close();
+    assertArrayEquals(contents, ceph.getFile(FILE));
+    assertEquals(0, ceph.getOpenHandles());
+
+    /* appends start at the end of the file */
+    byte[] more = data(300000, 7);
+    out = createStream(ceph, CephMount.O_APPEND);
+    writePieces(out, more, 3 * 65536);
+    out.close();
+    byte[] expected = Arrays.copyOf(contents, contents.length + more.length);
+    System.arraycopy(more, 0, expected, contents.length, more.length);
+    assertArrayEquals(expected, ceph.getFile(FILE));
+  }
+
+  @Test
+  public void testWriteBehindFailure() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+    CephMemoryTalker failing = new CephMemoryTalker() {
+      @Override
+      int write(int fd, byte[] buf, long size, long offset) throws IOException {
+        if (offset >= 1024 * 1024)
+          throw new IOException("injected failure");
+        return super.write(fd, buf, size, offset);
+      }
+    };
+
+    CephOutputStream out = createStream(failing, 0);
+    byte[] chunk = new byte[65536];
+    try {
+      for (int i = 0; i < 1000; i++)
+        out.write(chunk, 0, chunk.length);
+      out.flush();
+      fail("write failure was not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("injected failure"));
+    }
+
+    /* the failure sticks */
+    try {
+      out.write(chunk, 0, 1);
+      fail("write after a failure succeeded");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      out.close();
+      fail("close after a failure succeeded");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, failing.getOpenHandles());
+    assertEquals(1024 * 1024, failing.getFile(FILE).length);
+  }
+
+  /**
+   * With write-behind, full buffers are written in the background while
+   * the producer carries on. How much that saves a producer as slow as
+   * the cluster is timed by the write-behind benchmark in
+   * {@link CephBenchmark}.
+   */
+  @Test
+  public void testWriteBehindOverlapsProducer() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+    final CountDownLatch gate = new CountDownLatch(1);
+    CephMemoryTalker slow = new CephMemoryTalker() {
+      @Override
+      int write(int fd, byte[] buf, long size, long offset) throws IOException {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.write(fd, buf, size, offset);
+      }
+    };
+
+    /* three buffers are handed off while no write can complete */
+    byte[] contents = data(3 * 65536, 3);
+    CephOutputStream out = createStream(slow, CephMount.O_TRUNC);
+    out.write(contents, 0, contents.length);
+    assertEquals(contents.length, out.getInflightBytes());
+    assertEquals(contents.length, out.getPos());
+    assertEquals(0, slow.getFile(FILE).length);
+
+    gate.countDown();
+    out.close();
+    assertEquals(0, out.getInflightBytes());
+    assertEquals(3, slow.getOpCount("write"));
+    assertArrayEquals(contents, slow.getFile(FILE));
+  }
+
+  @Test
+  public void testHflushAndHsync() throws Exception {
+    for (boolean writeBehind : new boolean[] { false, true }) {
+      conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY,
+          writeBehind);
+      ceph.resetOpCounts();
+      CephOutputStream out = createStream(ceph, CephMount.O_TRUNC);
+      byte[] contents = data(1000, 5);
+      out.write(contents, 0, contents.length);
+      assertEquals(0, ceph.getFile(FILE).length);
+
+      /* hflush makes the data visible without syncing */
+      out.hflush();
+      assertArrayEquals(contents, ceph.getFile(FILE));
+      assertEquals(0, ceph.getOpCount("fsync"));
+
+      out.write(contents, 0, 10);
+      out.hsync();
+      assertEquals(1010, ceph.getFile(FILE).length);
+      assertEquals(1, ceph.getOpCount("fsync"));
+
+      /* close syncs */
+      out.close();
+      assertEquals(2, ceph.getOpCount("fsync"));
+    }
+  }
+
+  @Test
+  public void testDefaultFlushPolicySyncs() throws Exception {
+    CephOutputStream out = createStream(ceph, CephMount.O_TRUNC);
+    byte[] contents = data(1000, 6);
+    out.write(contents, 0, contents.length);
+    out.flush();
+    assertArrayEquals(contents, ceph.getFile(FILE));
+    assertEquals(1, ceph.getOpCount("fsync"));
+    out.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFlushPolicy() throws Exception {
+    conf.set(CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_KEY, "always");
+    createStream(ceph, CephMount.O_TRUNC);
+  }
+
+  /**
+   * A log appender style writer that flushes after every record, under
+   * each flush policy. flush() is an fsync by default; the flush-policy
+   * benchmark in {@link CephBenchmark} times the difference.
+   */
+  @Test
+  public void testFlushHeavyWriter() throws Exception {
+    final int records = 200;
+    byte[] record = ("a log line of about eighty bytes, "
+        + "give or take a few bytes...\n").getBytes("UTF-8");
+    for (String policy : new String[] { "hsync", "hflush", "none" }) {
+      conf.set(CephConfigKeys.CEPH_OUTPUT_FLUSH_POLICY_KEY, policy);
+      ceph.resetOpCounts();
+      CephOutputStream out = createStream(ceph, CephMount.O_TRUNC);
+      for (int i = 0; i < records; i++) {
+        out.write(record, 0, record.length);
+        out.flush();
+      }
+      out.close();
+      assertEquals(records * record.length, ceph.getFile(FILE).length);
+
+      if (policy.equals("hsync")) {
+        assertEquals(records + 1, ceph.getOpCount("fsync"));
+      } else {
+        assertEquals(1, ceph.getOpCount("fsync"));
+        assertEquals(policy.equals("hflush") ? records : 1,
+            ceph.getOpCount("write"));
+      }
+    }
+  }
+
+  /**
+   * A single writer of a file spanning many objects, writing one object
+   * at a time and then several at once. With one in flight the objects
+   * are written in file order. The parallel-object-writes benchmark in
+   * {@link CephBenchmark} times both.
+   */
+  @Test
+  public void testParallelObjectWrites() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+    conf.setLong(CephConfigKeys.CEPH_WRITE_BEHIND_INFLIGHT_MAX_KEY, 8 * 65536);
+    final List<Long> offsets =
+      Collections.synchronizedList(new ArrayList<Long>());
+    CephMemoryTalker recording = new CephMemoryTalker() {
+      @Override
+      int write(int fd, byte[] buf, long size, long offset) throws IOException {
+        offsets.add(offset);
+        return super.write(fd, buf, size, offset);
+      }
+    };
+    recording.setIoLatency(5);
+    byte[] contents = data(64 * 65536 + 100, 11);
+
+    for (int parallelism : new int[] { 1, 4 }) {
+      conf.setInt(CephConfigKeys.CEPH_WRITE_BEHIND_PARALLELISM_KEY,
+          parallelism);
+      recording.resetOpCounts();
+      offsets.clear();
+      CephOutputStream out = createStream(recording, CephMount.O_TRUNC);
+      writePieces(out, contents, 8 * 65536);
+      out.close();
+      assertArrayEquals(contents, recording.getFile(FILE));
+      assertEquals(parallelism, recording.getMaxInflight());
+
+      /* one write per object */
+      assertEquals(65, recording.getOpCount("write"));
+      List<Long> sorted = new ArrayList<Long>(offsets);
+      Collections.sort(sorted);
+      for (int i = 0; i < sorted.size(); i++)
+        assertEquals(i * 65536L, sorted.get(i).longValue());
+      if (parallelism == 1)
+        assertEquals(sorted, offsets);
+    }
+  }
+
+  @Test
+  public void testWritesDoNotCrossObjects() throws Exception {
+    conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY, true);
+    byte[] head = data(1000, 12);
+    ceph.putFile(FILE, head);
+
+    /* appending 3 buffers' worth at 1000 touches 4 objects */
+    byte[] more = data(3 * 65536, 13);
+    ceph.resetOpCounts();
+    CephOutputStream out = createStream(ceph, CephMount.O_APPEND);
+    out.write(more, 0, more.length);
+    out.close();
+    assertEquals(4, ceph.getOpCount("write"));
+
+    byte[] expected = Arrays.copyOf(head, head.length + more.length);
+    System.arraycopy(more, 0, expected, head.length, more.length);
+    assertArrayEquals(expected, ceph.getFile(FILE));
+  }
+
+  /* OSD ops of fixed size buffers written back to back from start */
+  private static long unalignedOsdWrites(long start, long length,
+      int bufferSize, long objectSize) {
+    long ops = 0;
+    for (long pos = start; pos < start + length; pos += bufferSize) {
+      long end = Math.min(pos + bufferSize, start + length);
+      ops += (end - 1) / objectSize - pos / objectSize + 1;
+    }
+    return ops;
+  }
+
+  /**
+   * Append to a file at an arbitrary offset and count the object writes
+   * the OSDs see, against what buffers that ignore the layout would cost.
+   */
+  @Test
+  public void testAlignedAppendSavesOsdWrites() throws Exception {
+    byte[] head = data(1000, 14);
+    byte[] more = data(4 << 20, 15);
+    for (int objectSize : new int[] { 65536, 262144 }) {
+      for (boolean writeBehind : new boolean[] { false, true }) {
+        conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY,
+            writeBehind);
+        ceph.setStripeUnit(objectSize);
+        ceph.putFile(FILE, head);
+        ceph.resetOpCounts();
+
+        CephOutputStream out = createStream(ceph, CephMount.O_APPEND);
+        writePieces(out, more, Long.MAX_VALUE);
+        out.close();
+
+        byte[] expected = Arrays.copyOf(head, head.length + more.length);
+        System.arraycopy(more, 0, expected, head.length, more.length);
+        assertArrayEquals(expected, ceph.getFile(FILE));
+
+        /* realigned after the first buffer: one op per buffer */
+        long aligned = ceph.getOpCount("osd_write");
+        long unaligned = unalignedOsdWrites(head.length, more.length, 65536,
+            objectSize);
+        assertEquals(ceph.getOpCount("write"), aligned);
+        assertEquals(more.length / 65536 + 1, aligned);
+        assertTrue(aligned < unaligned);
+      }
+    }
+  }
+
+  @Test
+  public void testByteBufferWrite() throws Exception {
+    byte[] contents = data(5 * 65536 + 1234, 16);
+    for (boolean writeBehind : new boolean[] { false, true }) {
+      conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY,
+          writeBehind);
+      for (boolean direct : new boolean[] { false, true }) {
+        ceph.resetOpCounts();
+        CephOutputStream out = createStream(ceph, CephMount.O_TRUNC);
+        assertTrue(out.isOpen());
+
+        /* a small write, then one spanning several buffers */
+        ByteBuffer head = ByteBuffer.wrap(contents, 0, 1000);
+        assertEquals(1000, out.write(head));
+        assertEquals(0, head.remaining());
+        ByteBuffer rest = direct ?
+          ByteBuffer.allocateDirect(contents.length - 1000) :
+          ByteBuffer.wrap(contents, 0, contents.length).slice();
+        if (direct) {
+          rest.put(contents, 1000, contents.length - 1000);
+          rest.flip();
+        } else {
+          rest.position(1000);
+        }
+        assertEquals(contents.length - 1000, out.write(rest));
+        assertEquals(0, rest.remaining());
+        out.close();
+        assertTrue(!out.isOpen());
+
+        assertArrayEquals(contents, ceph.getFile(FILE));
+        assertEquals(6, ceph.getOpCount("write"));
+      }
+    }
+  }
+
+  @Test
+  public void testPartialWrites() throws Exception {
+    CephMemoryTalker shortWrites = new CephMemoryTalker() {
+      @Override
+      int write(int fd, byte[] buf, long size, long offset) throws IOException {
+        return super.write(fd, buf, Math.min(size, 1000), offset);
+      }
+    };
+    byte[] contents = data(3 * 65536 + 17, 17);
+    for (boolean writeBehind : new boolean[] { false, true }) {
+      conf.setBoolean(CephConfigKeys.CEPH_WRITE_BEHIND_ENABLED_KEY,
+          writeBehind);
+      CephOutputStream out = createStream(shortWrites, CephMount.O_TRUNC);
+      writePieces(out, contents, Long.MAX_VALUE);
+      out.write(ByteBuffer.wrap(contents));
+      out.close();
+
+      byte[] expected = Arrays.copyOf(contents, 2 * contents.length);
+      System.arraycopy(contents, 0, expected, contents.length,
+          contents.length);
+      assertArrayEquals(expected, shortWrites.getFile(FILE));
+    }
+  }
+
+  /**
+   * After a short write the rest of the buffer is staged through pooled
+   * buffers, and what a failed write leaves is written from where it is
+   * rather than moved to the front of the buffer.
+   */
+  @Test
+  public void testPartialWritesAreStaged() throws Exception {
+    final AtomicBoolean failing = new AtomicBoolean();
+    CephMemoryTalker shortWrites = new CephMemoryTalker() {
+      @Override
+      int write(int fd, byte[] buf, long size, long offset) throws IOException {
+        if (failing.get() && getOpCount("write") >= 2)
+          throw new IOException("injected write failure");
+        return super.write(fd, buf, Math.min(size, 1000), offset);
+      }
+    };
+    CephBufferPool pool = new CephBufferPool(1 << 20);
+    int fd = shortWrites.open(new Path(FILE),
+        CephMount.O_WRONLY|CephMount.O_CREAT|CephMount.O_TRUNC, 0644);
+    CephOutputStream out = new CephOutputStream(conf, shortWrites, fd, 65536,
+        null, pool, null, null, null, null);
+    byte[] contents = data(30000, 19);
+
+    /* the first write is in place, the other nine are staged */
+    out.write(contents, 0, 10000);
+    out.hflush();
+    long misses = pool.getMisses();
+    shortWrites.resetOpCounts();
+    out.write(contents, 10000, 10000);
+    out.hflush();
+    assertEquals(10, shortWrites.getOpCount("write"));
+    assertEquals(9, shortWrites.getOpCount("write_staged"));
+    assertEquals(misses, pool.getMisses());
+
+    shortWrites.resetOpCounts();
+    failing.set(true);
+    out.write(contents, 20000, 10000);
+    try {
+      out.hflush();
+      fail("expected IOException");
+    } catch (IOException e) {
+    }
+    failing.set(false);
+    shortWrites.resetOpCounts();
+    out.hflush();
+    assertEquals(8, shortWrites.getOpCount("write"));
+    assertEquals(8, shortWrites.getOpCount("write_staged"));
+    assertEquals(misses, pool.getMisses());
+
+    out.close();
+    assertArrayEquals(contents, shortWrites.getFile(FILE));
+  }
+}
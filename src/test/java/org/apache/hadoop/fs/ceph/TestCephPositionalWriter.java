@@ -0,0 +1,169 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of positional file construction.
+ */
+public class TestCephPositionalWriter {
+  private static final int PIECE = 65536;
+
+  private CephMemoryTalker ceph;
+  private CephFileSystem fs;
+  private ExecutorService threads;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    Configuration conf = new Configuration(false);
+    fs = new CephFileSystem(conf, ceph);
+    fs.initialize(URI.create("ceph://localhost/"), conf);
+    threads = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    threads.shutdownNow();
+    fs.close();
+  }
+
+  /* writer w fills every nth piece, starting at piece w */
+  private void assemble(final CephPositionalWriter out, final byte[] contents,
+      final int writers) throws Exception {
+    final int pieces = contents.length / PIECE;
+    List<Future<Void>> done = new ArrayList<Future<Void>>();
+    for (int w = 0; w < writers; w++) {
+      final int first = w;
+      done.add(threads.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          for (int p = first; p < pieces; p += writers)
+            out.writeAt((long)p * PIECE, contents, p * PIECE, PIECE);
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> f : done)
+      f.get();
+    out.close();
+  }
+
+  /**
+   * Build a 64 piece file with one writer and with eight. The
+   * positional-assembly benchmark in {@link CephBenchmark} times both.
+   */
+  @Test
+  public void testParallelAssembly() throws Exception {
+    byte[] contents = new byte[64 * PIECE];
+    new Random(18).nextBytes(contents);
+    ceph.setIoLatency(5);
+
+    for (int writers : new int[] { 1, 8 }) {
+      ceph.resetOpCounts();
+      CephPositionalWriter out = fs.createPositional(new Path("/image"), true);
+      assemble(out, contents, writers);
+      assertArrayEquals(contents, ceph.getFile("/image"));
+      assertEquals(contents.length, out.getBytesWritten());
+      assertEquals(1, ceph.getOpCount("fsync"));
+      assertEquals(writers, ceph.getMaxInflight());
+    }
+    assertEquals(0, ceph.getOpenHandles());
+    assertEquals(0, fs.getStreamRegistry().getOpenFds());
+  }
+
+  /**
+   * A write from the start of an array is made in place. One from a
+   * non-zero offset is staged through the file system's buffer pool, a
+   * bounded piece at a time, and the staging buffer is reused.
+   */
+  @Test
+  public void testOffsetWritesArePooled() throws Exception {
+    byte[] contents = new byte[3 << 20];
+    new Random(19).nextBytes(contents);
+    CephBufferPool pool = fs.getBufferPool();
+    CephPositionalWriter out = fs.createPositional(new Path("/image"), true);
+
+    out.writeAt(0, contents, 0, 1000);
+    assertEquals(1, ceph.getOpCount("write"));
+    assertEquals(0, ceph.getOpCount("write_staged"));
+
+    out.writeAt(1000, contents, 1000, contents.length - 1000);
+    long misses = pool.getMisses();
+    assertEquals(4, ceph.getOpCount("write"));
+    assertEquals(3, ceph.getOpCount("write_staged"));
+    assertEquals(0, pool.getOutstandingBytes());
+
+    out.writeAt(1000, contents, 1000, contents.length - 1000);
+    assertEquals(misses, pool.getMisses());
+    out.close();
+    assertArrayEquals(contents, ceph.getFile("/image"));
+  }
+
+  @Test
+  public void testWriterLifecycle() throws Exception {
+    CephPositionalWriter out = fs.createPositional(new Path("/f"), false);
+    assertEquals(1, fs.getStreamRegistry().getOpenOutputStreams());
+
+    /* out of order, with a hole, from a direct buffer */
+    ByteBuffer direct = ByteBuffer.allocateDirect(10);
+    direct.put("0123456789".getBytes("UTF-8"));
+    direct.flip();
+    assertEquals(10, out.writeAt(20, direct));
+    assertEquals(0, direct.remaining());
+    out.writeAt(0, "abc".getBytes("UTF-8"));
+    out.close();
+    out.close();
+
+    byte[] file = ceph.getFile("/f");
+    assertEquals(30, file.length);
+    assertEquals("abc", new String(file, 0, 3, "UTF-8"));
+    assertEquals("0123456789", new String(file, 20, 10, "UTF-8"));
+    assertEquals(1, ceph.getOpCount("fsync"));
+
+    try {
+      out.writeAt(0, new byte[1]);
+      fail("write after close succeeded");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      fs.createPositional(new Path("/f"), false);
+      fail("existing file overwritten");
+    } catch (FileAlreadyExistsException e) {
+      // expected
+    }
+    assertEquals(0, fs.getStreamRegistry().getOpenFds());
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the readahead window policy.
+ */
+public class TestCephReadaheadPolicy {
+  private static final int KB = 1024;
+  private static final int MB = 1024 * 1024;
+
+  @Test
+  public void testSequentialRampsUpAndAligns() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 2 * MB, 4 * MB);
+    long pos = 0;
+    int last = 0;
+    for (int i = 0; i < 10; i++) {
+      int size = policy.nextFillSize(pos, 4096);
+      policy.filled(pos, size);
+      assertEquals(CephReadaheadPolicy.Pattern.SEQUENTIAL, policy.getPattern());
+      assertTrue(size >= last || size >= 4 * MB);
+      /* once the window covers an object, fills end on object boundaries */
+      if (size >= 4 * MB)
+        assertEquals(0, (pos + size) % (4 * MB));
+      last = size;
+      pos += size;
+    }
+    assertEquals(16 * MB, policy.getWindow());
+  }
+
+  @Test
+  public void testMisalignedStartRealigns() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 8 * MB, 4 * MB);
+    long pos = 1000;
+    int size = policy.nextFillSize(pos, 4096);
+    assertEquals(0, (pos + size) % (4 * MB));
+  }
+
+  @Test
+  public void testRandomShrinks() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 2 * MB, 64 * MB);
+    long[] offsets = { 0, 90 * MB, 3 * MB, 170 * MB, 40 * MB };
+    for (long pos : offsets) {
+      int size = policy.nextFillSize(pos, 4096);
+      policy.filled(pos, size);
+    }
+    assertEquals(CephReadaheadPolicy.Pattern.RANDOM, policy.getPattern());
+    assertEquals(64 * KB, policy.nextFillSize(7 * MB, 4096));
+  }
+
+  @Test
+  public void testStrided() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 2 * MB, 64 * MB);
+    for (int i = 0; i < 5; i++) {
+      long pos = i * 10L * MB;
+      int size = policy.nextFillSize(pos, 200 * KB);
+      policy.filled(pos, size);
+      if (i >= 2) {
+        assertEquals(CephReadaheadPolicy.Pattern.STRIDED, policy.getPattern());
+        assertEquals(200 * KB, size);
+      }
+    }
+  }
+
+  @Test
+  public void testCounters() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 2 * MB, 64 * MB);
+    int size = policy.nextFillSize(0, 100);
+    policy.filled(0, size);
+    policy.consumed(100);
+    assertEquals(size, policy.getBytesReadAhead());
+    assertEquals(100, policy.getBytesConsumed());
+  }
+
+  @Test
+  public void testLimit() {
+    CephReadaheadPolicy policy =
+      new CephReadaheadPolicy(64 * KB, 16 * MB, 2 * MB, 4 * MB);
+    policy.setLimit(100 * KB);
+    long pos = 0;
+    for (int i = 0; i < 5; i++) {
+      int size = policy.nextFillSize(pos, 4096);
+      assertTrue(size <= 100 * KB);
+      policy.filled(pos, size);
+      pos += size;
+    }
+    /* the caller always gets what it asked for */
+    assertEquals(MB, policy.nextFillSize(pos, MB));
+
+    policy.setLimit(0);
+    assertEquals(10, policy.nextFillSize(0, 10));
+    policy.setLimit(-1);
+    assertEquals(64 * KB, policy.nextFillSize(0, 10));
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.apache.hadoop.fs.ceph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ceph.fs.CephMount;
+
+/**
+ * Unit tests of hsync group commit.
+ */
+public class TestCephSyncCoordinator {
+  private CephMemoryTalker ceph;
+  private ExecutorService threads;
+
+  @Before
+  public void setup() throws Exception {
+    ceph = new CephMemoryTalker();
+    threads = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    threads.shutdownNow();
+  }
+
+  private int openFile(String path) throws IOException {
+    return ceph.open(new Path(path),
+        CephMount.O_WRONLY|CephMount.O_CREAT, 0644);
+  }
+
+  private Future<Void> syncLater(final CephSyncCoordinator coordinator,
+      final int fd, final long delay) {
+    return threads.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        Thread.sleep(delay);
+        coordinator.sync(fd);
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void testLoneSyncIsAnFsync() throws Exception {
+    CephSyncCoordinator coordinator = new CephSyncCoordinator(ceph, 0, 0, 2);
+    int fd = openFile("/f");
+    coordinator.sync(fd);
+    coordinator.sync(fd);
+    assertEquals(2, ceph.getOpCount("fsync"));
+    assertEquals(0, ceph.getOpCount("sync_fs"));
+    assertEquals(2, coordinator.getBatches());
+  }
+
+  @Test
+  public void testWindowBatchesRequests() throws Exception {
+    CephSyncCoordinator coordinator =
+      new CephSyncCoordinator(ceph, 500000, 5000000, 2);
+    Future<Void> a = syncLater(coordinator, openFile("/a"), 0);
+    Future<Void> b = syncLater(coordinator, openFile("/b"), 100);
+    a.get();
+    b.get();
+    assertEquals(1, coordinator.getBatches());
+    assertEquals(2, coordinator.getMaxBatchSize());
+    assertEquals(1, ceph.getOpCount("sync_fs"));
+    assertEquals(0, ceph.getOpCount("fsync"));
+  }
+
+  @Test
+  public void testMaxLatencyClosesBatch() throws Exception {
+    CephSyncCoordinator coordinator =
+      new CephSyncCoordinator(ceph, 10000000, 100000, 2);
+    long start = System.nanoTime();
+    coordinator.sync(openFile("/a"));
+    assertTrue(System.nanoTime() - start < 5000000000L);
+    assertEquals(1, ceph.getOpCount("fsync"));
+  }
+
+  @Test
+  public void testFailureReachesEveryWaiter() throws Exception {
+    ceph = new CephMemoryTalker() {
+      @Override
+      void sync_fs() throws IOException {
+        throw new IOException("injected failure");
+      }
+    };
+    CephSyncCoordinator coordinator =
+      new CephSyncCoordinator(ceph, 500000, 5000000, 2);
+    List<Future<Void>> syncs = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 3; i++)
+      syncs.add(syncLater(coordinator, openFile("/f" + i), 0));
+    for (Future<Void> f : syncs) {
+      try {
+        f.get();
+      } catch (java.util.concurrent.ExecutionException e) {
+        assertTrue(e.getCause().getMessage().contains("injected failure"));
+        continue;
+      }
+      throw new AssertionError("sync failure was not reported");
+    }
+  }
+
+  private void writers(final CephFileSystem fs, int writers,
+      final int records) throws Exception {
+    List<Future<Void>> done = new ArrayList<Future<Void>>();
+    for (int w = 0; w < writers; w++) {
+      final Path path = new Path("/wal-" + w);
+      done.add(threads.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          FSDataOutputStream out = fs.create(path);
+          for (int i = 0; i < records; i++) {
+            out.write(new byte[100]);
+            out.hsync();
+          }
+          out.close();
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> f : done)
+      f.get();
+  }
+
+  /**
+   * WAL style writers that sync every record. Without group commit every
+   * hsync is a cluster round trip of its own. The group-commit benchmark
+   * in {@link CephBenchmark} times both.
+   */
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    final int writers = 16;
+    final int records = 20;
+    ceph.setSyncLatency(3);
+
+    for (boolean group : new boolean[] { false, true }) {
+      Configuration conf = new Configuration(false);
+      conf.setBoolean(CephConfigKeys.CEPH_SYNC_GROUP_ENABLED_KEY, group);
+      CephFileSystem fs = new CephFileSystem(conf, ceph);
+      fs.initialize(URI.create("ceph://localhost/"), conf);
+      ceph.resetOpCounts();
+
+      writers(fs, writers, records);
+      long calls = ceph.getOpCount("fsync") + ceph.getOpCount("sync_fs");
+      if (group) {
+        CephSyncCoordinator coordinator = fs.getSyncCoordinator();
+        assertEquals(writers * (records + 1), coordinator.getSyncs());
+        assertTrue(coordinator.getSyncsPerBatch() > 1);
+        assertTrue(calls < writers * (records + 1));
+      } else {
+        assertEquals(writers * (records + 1), calls);
+      }
+      fs.close();
+    }
+  }
+}